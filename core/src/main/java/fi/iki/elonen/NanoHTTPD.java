@@ -12,8 +12,17 @@ import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -24,9 +33,26 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -110,7 +136,7 @@ public abstract class NanoHTTPD {
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
-    private Set<Socket> openConnections = new HashSet<Socket>();
+    private final Set<Socket> openConnections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
     private Thread myThread;
     /**
      * Pluggable strategy for asynchronously executing requests.
@@ -120,6 +146,34 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    /**
+     * Deletes temp files off the request threads, if set.
+     */
+    private TempFileCleaner tempFileCleaner;
+    /**
+     * Whether idle connections are parked on a selector instead of holding a thread each.
+     */
+    private boolean useSelector;
+    private boolean compressionEnabled;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionMinSize = 1024;
+    private int maxInMemoryBodySize = 64 * 1024;
+    private long maxBodySize = Long.MAX_VALUE;
+    /**
+     * Listener and socket settings, applied on {@link #start()} and to every accepted connection.
+     */
+    private ServerOptions options = new ServerOptions();
+    private int maxKeepAliveRequests;
+    private int maxIdleConnections;
+    /**
+     * Keep-alive connections waiting for their next request, oldest first.
+     */
+    private final Map<IdleConnection, Boolean> idleConnections = new LinkedHashMap<IdleConnection, Boolean>();
+    private Selector selector;
+    /**
+     * Connections handed back by request threads, waiting to be registered with the selector again.
+     */
+    private final Queue<SelectorConnection> pendingRegistrations = new ConcurrentLinkedQueue<SelectorConnection>();
 
     /**
      * Constructs an HTTP server on given port.
@@ -165,6 +219,15 @@ public abstract class NanoHTTPD {
         }
     }
 
+    private static final void safeClose(Selector closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
     /**
      * To facilitate PropertyChangeListeners.
      */
@@ -186,8 +249,17 @@ public abstract class NanoHTTPD {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
+        if (tempFileCleaner != null) {
+            tempFileCleaner.start();
+        }
+        if (useSelector) {
+            startSelector();
+            return;
+        }
+
         myServerSocket = new ServerSocket();
-        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        options.applyTo(myServerSocket, ServerSocket.class, myServerSocket);
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort), options.getBacklog());
 
         myThread = new Thread(new Runnable() {
             @Override
@@ -208,47 +280,122 @@ public abstract class NanoHTTPD {
             private void acceptAndProcessRequests() throws IOException, SocketException {
                 final Socket finalAccept = myServerSocket.accept();
                 registerConnection(finalAccept);
-                finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
+                options.applyTo(finalAccept);
                 final InputStream inputStream = finalAccept
                         .getInputStream();
-                asyncRunner.exec(new Runnable() {
-                    @Override
-                    public void run() {
-                        OutputStream outputStream = null;
+                asyncRunner.exec(new SocketHandler(finalAccept, inputStream));
+            }
+
+        });
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Main Listener");
+        myThread.start();
+    }
+
+    /**
+     * Starts the selector based listener.  A single thread accepts connections and reads
+     * request headers without blocking; only once a complete header has arrived is the
+     * connection handed to the {@link AsyncRunner}.  Keep-alive connections waiting for
+     * their next request are returned to the selector, so they don't hold a thread.
+     */
+    private void startSelector() throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        myServerSocket = serverChannel.socket();
+        options.applyTo(myServerSocket, ServerSocketChannel.class, serverChannel);
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort), options.getBacklog());
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        myThread = new Thread(new Runnable() {
+            private long lastIdleCheck = System.currentTimeMillis();
+
+            @Override
+            public void run() {
+                pcs.firePropertyChange(PROPERTY_RUNSTATE, false, true);
+                try {
+                    while (serverChannel.isOpen()) {
                         try {
-                            outputStream = finalAccept
-                                    .getOutputStream();
-                            TempFileManager tempFileManager = tempFileManagerFactory
-                                    .create();
-                            HTTPSession session = new HTTPSession(
-                                    tempFileManager, inputStream,
-                                    outputStream, finalAccept
-                                            .getInetAddress());
-                            while (!finalAccept.isClosed()) {
-                                session.execute();
-                            }
-                        } catch (Exception e) {
-                            // When the socket is closed by the
-                            // client, we throw our own
-                            // SocketException
-                            // to break the "keep alive" loop above.
-                            if (!(e instanceof SocketException && "NanoHttpd Shutdown"
-                                    .equals(e.getMessage()))) {
-                                e.printStackTrace();
+                            selectAndDispatch();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                } finally {
+                    safeClose(selector);
+                    pcs.firePropertyChange(PROPERTY_RUNSTATE, true, false);
+                }
+            }
+
+            private void selectAndDispatch() throws IOException {
+                selector.select(1000);
+                SelectorConnection pending;
+                while ((pending = pendingRegistrations.poll()) != null) {
+                    pending.register();
+                }
+
+                List<SelectorConnection> ready = null;
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else if (key.isReadable()) {
+                        SelectorConnection connection = (SelectorConnection) key.attachment();
+                        if (connection.readHeader()) {
+                            key.cancel();
+                            if (ready == null) {
+                                ready = new ArrayList<SelectorConnection>();
                             }
-                        } finally {
-                            safeClose(outputStream);
-                            safeClose(inputStream);
-                            safeClose(finalAccept);
-                            unRegisterConnection(finalAccept);
+                            ready.add(connection);
+                        }
+                    }
+                }
+
+                if (ready != null) {
+                    // A channel can only be switched back to blocking mode once its
+                    // cancelled key has actually been removed from the selector.
+                    selector.selectNow();
+                    for (SelectorConnection connection : ready) {
+                        connection.dispatch();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000) {
+                    lastIdleCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        Object attachment = key.attachment();
+                        if (attachment instanceof SelectorConnection && ((SelectorConnection) attachment).isTimedOut(now)) {
+                            ((SelectorConnection) attachment).close();
                         }
                     }
-                });
+                }
             }
 
+            private void accept(ServerSocketChannel serverChannel) throws IOException {
+                SocketChannel channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                Socket socket = channel.socket();
+                registerConnection(socket);
+                try {
+                    options.applyTo(socket);
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    safeClose(channel);
+                    unRegisterConnection(socket);
+                    return;
+                }
+                new SelectorConnection(channel).register();
+            }
         });
         myThread.setDaemon(true);
-        myThread.setName("NanoHttpd Main Listener");
+        myThread.setName("NanoHttpd Selector");
         myThread.start();
     }
 
@@ -258,10 +405,16 @@ public abstract class NanoHTTPD {
     public void stop() {
         try {
             safeClose(myServerSocket);
+            if (selector != null) {
+                selector.wakeup();
+            }
             closeAllConnections();
             if (myThread != null) {
                 myThread.join();
             }
+            if (tempFileCleaner != null) {
+                tempFileCleaner.shutdown();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -272,7 +425,7 @@ public abstract class NanoHTTPD {
      *
      * @param socket the {@link Socket} for the connection.
      */
-    public synchronized void registerConnection(Socket socket) {
+    public void registerConnection(Socket socket) {
         openConnections.add(socket);
     }
 
@@ -282,14 +435,14 @@ public abstract class NanoHTTPD {
      * @param socket
      *            the {@link Socket} for the connection.
      */
-    public synchronized void unRegisterConnection(Socket socket) {
+    public void unRegisterConnection(Socket socket) {
         openConnections.remove(socket);
     }
 
     /**
      * Forcibly closes all connections that are open.
      */
-    public synchronized void closeAllConnections() {
+    public void closeAllConnections() {
         for (Socket socket : openConnections) {
             safeClose(socket);
         }
@@ -372,10 +525,16 @@ public abstract class NanoHTTPD {
         if (Method.PUT.equals(method) || Method.POST.equals(method)) {
             try {
                 session.parseBody(files);
+            } catch (RequestBodyTooLargeException e) {
+                return unreadableBody(new Response(Response.Status.REQUEST_ENTITY_TOO_LARGE, MIME_PLAINTEXT, e.getMessage()));
+            } catch (MalformedRequestBodyException e) {
+                return unreadableBody(new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "BAD REQUEST: " + e.getMessage()));
             } catch (IOException ioe) {
                 return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
             } catch (ResponseException re) {
-                return new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                boolean unreadable = re.getStatus() == Response.Status.REQUEST_ENTITY_TOO_LARGE || re.getCause() instanceof MalformedRequestBodyException;
+                return unreadable ? unreadableBody(r) : r;
             }
         }
 
@@ -384,6 +543,30 @@ public abstract class NanoHTTPD {
         return serve(session.getUri(), method, session.getHeaders(), parms, files);
     }
 
+    /**
+     * The rest of an oversized or malformed body is never read, so the connection can't carry
+     * another request.
+     */
+    private static Response unreadableBody(Response response) {
+        response.addHeader("Connection", "close");
+        return response;
+    }
+
+    /**
+     * Called once the request header has been read, before the body is read or {@link #serve(IHTTPSession)}
+     * is called.  Return a response to reject the request without reading its body (the connection is
+     * closed afterwards), or null to go on.
+     * <p/>
+     * <p>A client that sent <code>Expect: 100-continue</code> is told to send the body when the
+     * body is first read.</p>
+     *
+     * @param session The HTTP session, with the body not yet read
+     * @return null to accept the request, or the response to send instead
+     */
+    protected Response checkRequest(IHTTPSession session) {
+        return null;
+    }
+
     /**
      * Decode percent encoded <code>String</code> values.
      *
@@ -454,6 +637,149 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * Switches between the classic listener, which hands every accepted socket to the
+     * {@link AsyncRunner} for the whole lifetime of the connection, and a selector based
+     * listener, which only occupies a request thread while a request is actually being
+     * processed.  Must be called before {@link #start()}.
+     *
+     * @param useSelector true to multiplex idle connections on a selector.
+     */
+    public void setUseSelector(boolean useSelector) {
+        this.useSelector = useSelector;
+    }
+
+    /**
+     * Turns on gzip/deflate compression of response bodies, negotiated from the request's
+     * <code>Accept-Encoding</code> header.  Only textual MIME types are compressed, and only when
+     * the body is at least {@link #setCompressionMinSize(int)} bytes or of unknown length.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * @param compressionLevel 1 (fastest) to 9 (smallest), or <code>Deflater.DEFAULT_COMPRESSION</code>.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param compressionMinSize bodies of a known length below this many bytes are sent as they are.
+     */
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    /**
+     * Request bodies with a <code>Content-Length</code> up to this size are read into memory by
+     * {@link IHTTPSession#parseBody(Map)}; larger bodies, or bodies of unknown length, go to a temp file.
+     */
+    public void setMaxInMemoryBodySize(int maxInMemoryBodySize) {
+        this.maxInMemoryBodySize = maxInMemoryBodySize;
+    }
+
+    /**
+     * Largest request body accepted, in bytes.  Requests with a larger Content-Length are answered
+     * with 413 before their body is read; chunked bodies that grow past it fail with
+     * {@link RequestBodyTooLargeException}, also answered with 413.
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    // ------------------------------------------------------------------------------- //
+    //
+    // Keep-alive policy.
+    //
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * How long a connection may wait for its next request before it is closed, in milliseconds.
+     * Advertised in the <code>Keep-Alive</code> header.  Same as the idle timeout of the
+     * {@link ServerOptions}; defaults to {@link #SOCKET_READ_TIMEOUT}.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        options.setIdleTimeout(keepAliveTimeout);
+    }
+
+    public int getKeepAliveTimeout() {
+        return options.getIdleTimeout();
+    }
+
+    /**
+     * Number of requests served on a connection before it is closed; 0 (the default) for no limit.
+     * The number left is advertised in the <code>Keep-Alive</code> header.
+     */
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    /**
+     * Number of keep-alive connections allowed to wait for their next request; once there are
+     * more, the one that has been waiting longest is closed.  0 (the default) for no limit.
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+        if (maxIdleConnections <= 0) {
+            // No longer tracked, so the entries would never be removed.
+            synchronized (idleConnections) {
+                idleConnections.clear();
+            }
+        }
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * @return the number of keep-alive connections waiting for their next request, as tracked
+     * while {@link #setMaxIdleConnections(int)} is in effect.
+     */
+    public int getIdleConnectionCount() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
+    }
+
+    private void connectionIdle(IdleConnection connection) {
+        if (maxIdleConnections <= 0) {
+            return;
+        }
+        List<IdleConnection> evicted = null;
+        synchronized (idleConnections) {
+            idleConnections.put(connection, Boolean.TRUE);
+            Iterator<IdleConnection> oldest = idleConnections.keySet().iterator();
+            while (idleConnections.size() > maxIdleConnections && oldest.hasNext()) {
+                if (evicted == null) {
+                    evicted = new ArrayList<IdleConnection>();
+                }
+                evicted.add(oldest.next());
+                oldest.remove();
+            }
+        }
+        if (evicted != null) {
+            for (IdleConnection idle : evicted) {
+                idle.closeIdle();
+            }
+        }
+    }
+
+    private void connectionBusy(IdleConnection connection) {
+        if (maxIdleConnections <= 0) {
+            return;
+        }
+        synchronized (idleConnections) {
+            idleConnections.remove(connection);
+        }
+    }
+
     // ------------------------------------------------------------------------------- //
     //
     // Temp file handling strategy.
@@ -469,20 +795,72 @@ public abstract class NanoHTTPD {
         this.tempFileManagerFactory = tempFileManagerFactory;
     }
 
+    /**
+     * Moves the deletion of temp files made by the default temp file managers to a background
+     * thread, so a keep-alive connection can go on with its next request right away.  The
+     * cleaner is started and shut down together with the server, and the default temp file
+     * managers create their files in its directory.
+     *
+     * @param tempFileCleaner the cleaner, or null to delete temp files on the request thread.
+     */
+    public void setTempFileCleaner(TempFileCleaner tempFileCleaner) {
+        this.tempFileCleaner = tempFileCleaner;
+    }
+
+    public TempFileCleaner getTempFileCleaner() {
+        return tempFileCleaner;
+    }
+
+    /**
+     * Replaces the listener and socket settings.  Listener settings take effect on the next
+     * {@link #start()}, the others for connections accepted after the change.
+     */
+    public void setServerOptions(ServerOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * @return the settings in use, which may be changed in place.
+     */
+    public ServerOptions getServerOptions() {
+        return options;
+    }
+
     /**
      * HTTP Request methods, with the ability to decode a <code>String</code> back to its enum value.
      */
     public enum Method {
         GET, PUT, POST, DELETE, HEAD, OPTIONS;
 
+        private static final Method[] METHODS = values();
+
         static Method lookup(String method) {
-            for (Method m : Method.values()) {
+            for (Method m : METHODS) {
                 if (m.toString().equalsIgnoreCase(method)) {
                     return m;
                 }
             }
             return null;
         }
+
+        /**
+         * Looks up the method named by the bytes <code>buf[start..end)</code>, ignoring case.
+         */
+        static Method lookup(byte[] buf, int start, int end) {
+            for (Method m : METHODS) {
+                String name = m.name();
+                if (name.length() == end - start) {
+                    int i = 0;
+                    while (i < name.length() && (buf[start + i] & 0xdf) == name.charAt(i)) {
+                        i++;
+                    }
+                    if (i == name.length()) {
+                        return m;
+                    }
+                }
+            }
+            return null;
+        }
     }
 
     /**
@@ -492,6 +870,23 @@ public abstract class NanoHTTPD {
         void exec(Runnable code);
     }
 
+    /**
+     * The work handed to an {@link AsyncRunner} for an accepted connection.
+     * <p/>
+     * <p>Runners that cannot take on more work may call <code>reject()</code> instead of
+     * running the handler, which sends the given response and closes the connection.</p>
+     */
+    public interface ClientHandler extends Runnable {
+        void reject(Response response);
+    }
+
+    /**
+     * A keep-alive connection that can be closed while it waits for its next request.
+     */
+    private interface IdleConnection {
+        void closeIdle();
+    }
+
     /**
      * Factory to create temp file managers.
      */
@@ -528,402 +923,3158 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Default threading strategy for NanoHttpd.
+     * Settings for the listening socket and the connections it accepts.
      * <p/>
-     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
-     * to <i>daemon</i> status, and named according to the request number.  The name is
-     * useful when profiling the application.</p>
+     * <p>Options left unset keep the platform default.  Read timeouts are in milliseconds, 0
+     * meaning none: the idle timeout covers waiting for a request to start, the header timeout
+     * reading the rest of its header, and the body timeout each read of its body.  The header
+     * and body timeouts default to the idle timeout.</p>
      */
-    public static class DefaultAsyncRunner implements AsyncRunner {
-        private long requestCount;
+    public static class ServerOptions {
+        private int backlog = 50;
+        private Boolean reuseAddress;
+        private boolean reusePort;
+        private Boolean tcpNoDelay;
+        private int sendBufferSize;
+        private int receiveBufferSize;
+        private int idleTimeout = SOCKET_READ_TIMEOUT;
+        private int headerTimeout = -1;
+        private int bodyTimeout = -1;
 
-        @Override
-        public void exec(Runnable code) {
-            ++requestCount;
-            Thread t = new Thread(code);
-            t.setDaemon(true);
-            t.setName("NanoHttpd Request Processor (#" + requestCount + ")");
-            t.start();
+        /**
+         * @param backlog the number of connections the operating system queues while the
+         *                listener is busy; raise it for bursts of new connections.
+         */
+        public ServerOptions setBacklog(int backlog) {
+            this.backlog = backlog;
+            return this;
         }
-    }
 
-    /**
-     * Default strategy for creating and cleaning up temporary files.
-     * <p/>
-     * <p></p>This class stores its files in the standard location (that is,
-     * wherever <code>java.io.tmpdir</code> points to).  Files are added
-     * to an internal list, and deleted when no longer needed (that is,
-     * when <code>clear()</code> is invoked at the end of processing a
-     * request).</p>
-     */
-    public static class DefaultTempFileManager implements TempFileManager {
-        private final String tmpdir;
-        private final List<TempFile> tempFiles;
+        public int getBacklog() {
+            return backlog;
+        }
 
-        public DefaultTempFileManager() {
-            tmpdir = System.getProperty("java.io.tmpdir");
-            tempFiles = new ArrayList<TempFile>();
+        public ServerOptions setReuseAddress(boolean reuseAddress) {
+            this.reuseAddress = reuseAddress;
+            return this;
         }
 
-        @Override
-        public TempFile createTempFile() throws Exception {
-            DefaultTempFile tempFile = new DefaultTempFile(tmpdir);
-            tempFiles.add(tempFile);
-            return tempFile;
+        public Boolean getReuseAddress() {
+            return reuseAddress;
         }
 
-        @Override
-        public void clear() {
-            for (TempFile file : tempFiles) {
-                try {
-                    file.delete();
-                } catch (Exception ignored) {
-                }
-            }
-            tempFiles.clear();
+        /**
+         * Lets several servers bind the same port, the kernel spreading connections between
+         * them.  Needs Java 9 and an operating system supporting <code>SO_REUSEPORT</code>;
+         * ignored otherwise.
+         */
+        public ServerOptions setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
         }
-    }
 
-    /**
-     * Default strategy for creating and cleaning up temporary files.
-     * <p/>
-     * <p></p></[>By default, files are created by <code>File.createTempFile()</code> in
-     * the directory specified.</p>
-     */
-    public static class DefaultTempFile implements TempFile {
-        private File file;
-        private OutputStream fstream;
+        public boolean isReusePort() {
+            return reusePort;
+        }
 
-        public DefaultTempFile(String tempdir) throws IOException {
-            file = File.createTempFile("NanoHTTPD-", "", new File(tempdir));
-            fstream = new FileOutputStream(file);
+        public ServerOptions setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
         }
 
-        @Override
-        public OutputStream open() throws Exception {
-            return fstream;
+        public Boolean getTcpNoDelay() {
+            return tcpNoDelay;
         }
 
-        @Override
-        public void delete() throws Exception {
-            safeClose(fstream);
-            file.delete();
+        /**
+         * @param sendBufferSize <code>SO_SNDBUF</code> of accepted sockets, or 0 for the default.
+         */
+        public ServerOptions setSendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
         }
 
-        @Override
-        public String getName() {
-            return file.getAbsolutePath();
+        public int getSendBufferSize() {
+            return sendBufferSize;
         }
-    }
 
-    /**
-     * HTTP response. Return one of these from serve().
-     */
-    public static class Response {
-        /**
-         * HTTP status code after processing, e.g. "200 OK", HTTP_OK
-         */
-        private IStatus status;
-        /**
-         * MIME type of content, e.g. "text/html"
-         */
-        private String mimeType;
-        /**
-         * Data of the response, may be null.
-         */
-        private InputStream data;
-        /**
-         * Headers for the HTTP response. Use addHeader() to add lines.
-         * This is a LinkedHashMap so that the order of the headers added is
-         * available if required.
-         */
-        private Map<String, List<String>> header = new LinkedHashMap<String, List<String>>();
-        /**
-         * The request method that spawned this response.
-         */
-        private Method requestMethod;
         /**
-         * Use chunkedTransfer
+         * @param receiveBufferSize <code>SO_RCVBUF</code> of the listener, inherited by accepted
+         *                          sockets, or 0 for the default.
          */
-        private boolean chunkedTransfer;
+        public ServerOptions setReceiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
 
-        /**
-         * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
-         */
-        public Response(String msg) {
-            this(Status.OK, MIME_HTML, msg);
+        public int getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        public ServerOptions setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        public int getIdleTimeout() {
+            return idleTimeout;
         }
 
         /**
-         * Basic constructor.
+         * @param headerTimeout how long the rest of a request header may take once its first bytes
+         *                      arrived, or -1 for the idle timeout.
          */
-        public Response(IStatus status, String mimeType, InputStream data) {
-            this.status = status;
-            this.mimeType = mimeType;
-            this.data = data;
+        public ServerOptions setHeaderTimeout(int headerTimeout) {
+            this.headerTimeout = headerTimeout;
+            return this;
+        }
+
+        public int getHeaderTimeout() {
+            return headerTimeout < 0 ? idleTimeout : headerTimeout;
         }
 
         /**
-         * Convenience method that makes an InputStream out of given text.
+         * @param bodyTimeout how long a read of the request body may block, or -1 for the idle timeout.
          */
-        public Response(IStatus status, String mimeType, String txt) {
-            this.status = status;
-            this.mimeType = mimeType;
-            try {
-                this.data = txt != null ? new ByteArrayInputStream(txt.getBytes("UTF-8")) : null;
-            } catch (java.io.UnsupportedEncodingException uee) {
-                uee.printStackTrace();
-            }
+        public ServerOptions setBodyTimeout(int bodyTimeout) {
+            this.bodyTimeout = bodyTimeout;
+            return this;
+        }
+
+        public int getBodyTimeout() {
+            return bodyTimeout < 0 ? idleTimeout : bodyTimeout;
         }
 
         /**
-         * Adds given line to the header.
+         * Applies the listener options; must be called before the socket is bound.
+         *
+         * @param optionType the public type declaring <code>setOption</code> on <code>target</code>.
          */
-        public void addHeader(String name, String value) {
-            addHeader(name, value, false);
+        void applyTo(ServerSocket serverSocket, Class<?> optionType, Object target) throws IOException {
+            if (reuseAddress != null) {
+                serverSocket.setReuseAddress(reuseAddress);
+            }
+            if (receiveBufferSize > 0) {
+                serverSocket.setReceiveBufferSize(receiveBufferSize);
+            }
+            if (reusePort) {
+                setReusePort(optionType, target);
+            }
         }
 
-        public void addHeader(String name, String value, boolean allowMultiple) {
-            List<String> list = header.get(name);
-            if (list==null) {
-                list = new ArrayList<String>();
-                header.put(name, list);
+        void applyTo(Socket socket) throws SocketException {
+            if (tcpNoDelay != null) {
+                socket.setTcpNoDelay(tcpNoDelay);
             }
-            
-            if (! allowMultiple && ! list.isEmpty()) {
-                list.remove(0);
+            if (sendBufferSize > 0) {
+                socket.setSendBufferSize(sendBufferSize);
             }
-            list.add(value);
+            socket.setSoTimeout(idleTimeout);
         }
 
         /**
-         * Return the first of the headers of the given name
-         * @param name
-         * @return
+         * Sets <code>SO_REUSEPORT</code> through <code>setOption</code>, which isn't there before
+         * Java 9, so it is looked up at runtime.  Left alone where it is not supported.
          */
-        public String getHeader(String name) {
-            List<String> list = header.get(name);
-            return (list==null || list.isEmpty()) ? null : list.get(0);
+        private static void setReusePort(Class<?> optionType, Object target) {
+            try {
+                Class<?> optionClass = Class.forName("java.net.SocketOption");
+                Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+                optionType.getMethod("setOption", optionClass, Object.class).invoke(target, option, Boolean.TRUE);
+            } catch (Exception ignored) {
+            }
         }
+    }
 
-        @SuppressWarnings("unchecked")
-        public List<String> getHeaderValues(String name) {
-            List<String> list = header.get(name);
-            return (list==null || list.isEmpty()) ? Collections.EMPTY_LIST : list;
+    /**
+     * Default threading strategy for NanoHttpd.
+     * <p/>
+     * <p>By default, the server spawns a new Thread for every incoming request.  These are set
+     * to <i>daemon</i> status, and named according to the request number.  The name is
+     * useful when profiling the application.</p>
+     */
+    public static class DefaultAsyncRunner implements AsyncRunner {
+        private long requestCount;
+
+        @Override
+        public void exec(Runnable code) {
+            ++requestCount;
+            Thread t = new Thread(code);
+            t.setDaemon(true);
+            t.setName("NanoHttpd Request Processor (#" + requestCount + ")");
+            t.start();
         }
+    }
 
-        /**
-         * Sends given response to the socket.
-         */
-        protected void send(OutputStream outputStream) {
-            String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    /**
+     * Threading strategy running every connection on its own virtual thread (JDK 21 and later).
+     * <p/>
+     * <p>A virtual thread costs a few kilobytes rather than a whole platform thread stack, so the
+     * thread-per-connection model scales to a very large number of keep-alive connections.  The
+     * buffers a request needs are taken from small shared pools rather than cached per thread,
+     * so a connection waiting for its next request holds none of them.  The
+     * virtual thread API is looked up at runtime, so this class still compiles for older Java
+     * versions; there it falls back to daemon platform threads, just like {@link DefaultAsyncRunner}.</p>
+     */
+    public static class VirtualThreadAsyncRunner implements AsyncRunner {
+        private final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+        private final AtomicLong requestCount = new AtomicLong();
 
+        private static ThreadFactory createVirtualThreadFactory() {
             try {
-                if (status == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
-                }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
-
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
-                }
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (Exception e) {
+                return null;
+            }
+        }
 
-                if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
-                }
+        /**
+         * @return true if requests run on virtual threads, false if this JVM doesn't support them.
+         */
+        public boolean isVirtual() {
+            return virtualThreadFactory != null;
+        }
 
-                if (header != null) {
-                    for (String key : header.keySet()) {
-                        List<String> values = header.get(key);
-                        if (values!=null) {
-                            for (String value : values) {
-                                pw.print(key + ": " + value + "\r\n");
-                            }
-                        }
-                    }
-                }
+        @Override
+        public void exec(Runnable code) {
+            long count = requestCount.incrementAndGet();
+            Thread t;
+            if (virtualThreadFactory != null) {
+                t = virtualThreadFactory.newThread(code);
+                t.setName("NanoHttpd Request Processor (virtual #" + count + ")");
+            } else {
+                t = new Thread(code);
+                t.setDaemon(true);
+                t.setName("NanoHttpd Request Processor (#" + count + ")");
+            }
+            t.start();
+        }
+    }
 
-                sendConnectionHeaderIfNotAlreadyPresent(pw, header.keySet());
+    /**
+     * Threading strategy backed by a bounded pool of request threads.
+     * <p/>
+     * <p>Requests that arrive while every thread is busy wait in a bounded queue.  Once the
+     * queue is full too, the connection is answered with <code>503 Service Unavailable</code>
+     * and a <code>Retry-After</code> header, and closed.  The counters exposed here are meant
+     * for sizing the pool and queue.</p>
+     */
+    public static class PooledAsyncRunner implements AsyncRunner {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private volatile int retryAfter = 5;
 
-                if (requestMethod != Method.HEAD && chunkedTransfer) {
-                    sendAsChunked(outputStream, pw);
-                } else {
-                    int pending = data != null ? data.available() : 0;
-                    sendContentLengthHeaderIfNotAlreadyPresent(pw, header.keySet(), pending);
-                    pw.print("\r\n");
-                    pw.flush();
-                    sendAsFixedLength(outputStream, pending);
+        /**
+         * @param corePoolSize  number of request threads kept alive while idle.
+         * @param maxPoolSize   upper bound of request threads; the pool only grows past the core size while the queue is full.
+         * @param queueCapacity number of requests allowed to wait for a thread; 0 hands requests straight to a thread.
+         */
+        public PooledAsyncRunner(int corePoolSize, int maxPoolSize, int queueCapacity) {
+            BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity) : new SynchronousQueue<Runnable>();
+            executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, 60L, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                private final AtomicLong threadCount = new AtomicLong();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+                    return t;
                 }
-                outputStream.flush();
-                safeClose(data);
-            } catch (IOException ioe) {
-                // Couldn't write? No can do.
-            }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable code, ThreadPoolExecutor executor) {
+                    reject(code);
+                }
+            });
         }
 
-        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Set<String> header, int size) {
-            if (! headerAlreadySent(header, "content-length")) {
-                pw.print("Content-Length: " + size + "\r\n");
-            }
+        @Override
+        public void exec(Runnable code) {
+            executor.execute(code);
         }
 
-        protected void sendConnectionHeaderIfNotAlreadyPresent(PrintWriter pw, Set<String> header) {
-            if (! headerAlreadySent(header, "connection")) {
-                // This should hopefully satisfy any ancient clients out there
-                // who still want/need this.
-                pw.print("Connection: keep-alive\r\n");
+        /**
+         * Called for every request that found both the pool and the queue full.
+         */
+        protected void reject(Runnable code) {
+            rejectedCount.incrementAndGet();
+            if (code instanceof ClientHandler) {
+                Response response = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server is busy, try again later.");
+                response.addHeader("Retry-After", String.valueOf(retryAfter));
+                response.addHeader("Connection", "close");
+                ((ClientHandler) code).reject(response);
             }
         }
 
-        private boolean headerAlreadySent(Set<String> headerNames, String name) {
-            boolean alreadySent = false;
-            for (String headerName : headerNames) {
-                alreadySent |= headerName.equalsIgnoreCase(name);
-            }
-            return alreadySent;
+        /**
+         * @param seconds value of the <code>Retry-After</code> header sent with rejections.
+         */
+        public void setRetryAfter(int seconds) {
+            this.retryAfter = seconds;
         }
 
-        private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-            pw.print("Transfer-Encoding: chunked\r\n");
-            pw.print("\r\n");
-            pw.flush();
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
-            int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
-            }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
+        /**
+         * @return the number of requests waiting for a thread.
+         */
+        public int getQueueDepth() {
+            return executor.getQueue().size();
         }
 
-        private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
-            if (requestMethod != Method.HEAD && data != null) {
-                int BUFFER_SIZE = 16 * 1024;
-                byte[] buff = new byte[BUFFER_SIZE];
-                while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
-                    if (read <= 0) {
-                        break;
-                    }
-                    outputStream.write(buff, 0, read);
-                    pending -= read;
-                }
-            }
+        /**
+         * @return the number of requests answered with 503 so far.
+         */
+        public long getRejectedCount() {
+            return rejectedCount.get();
         }
 
-        public IStatus getStatus() {
-            return status;
+        /**
+         * @return the number of threads currently running a request.
+         */
+        public int getActiveCount() {
+            return executor.getActiveCount();
         }
 
-        public void setStatus(Status status) {
-            this.status = status;
+        /**
+         * @return the number of threads currently in the pool.
+         */
+        public int getPoolSize() {
+            return executor.getPoolSize();
         }
 
-        public String getMimeType() {
-            return mimeType;
+        /**
+         * @return the number of requests that have run to completion.
+         */
+        public long getCompletedCount() {
+            return executor.getCompletedTaskCount();
         }
 
-        public void setMimeType(String mimeType) {
-            this.mimeType = mimeType;
+        /**
+         * Stops the request threads; requests still waiting in the queue are dropped.
+         */
+        public void shutdown() {
+            executor.shutdownNow();
         }
+    }
 
-        public InputStream getData() {
-            return data;
+    /**
+     * Default strategy for creating and cleaning up temporary files.
+     * <p/>
+     * <p></p>This class stores its files in the directory of its {@link TempFileCleaner}, or
+     * without one in the standard location (that is, wherever <code>java.io.tmpdir</code>
+     * points to).  Files are added
+     * to an internal list, and deleted when no longer needed (that is,
+     * when <code>clear()</code> is invoked at the end of processing a
+     * request).</p>
+     */
+    public static class DefaultTempFileManager implements TempFileManager {
+        private final String tmpdir;
+        private final List<TempFile> tempFiles;
+        private final TempFileCleaner cleaner;
+
+        public DefaultTempFileManager() {
+            this(null);
         }
 
-        public void setData(InputStream data) {
-            this.data = data;
+        /**
+         * @param cleaner deletes the files on <code>clear()</code>, or null to delete them right away.
+         */
+        public DefaultTempFileManager(TempFileCleaner cleaner) {
+            this.cleaner = cleaner;
+            tmpdir = cleaner != null ? cleaner.getTmpdir() : System.getProperty("java.io.tmpdir");
+            tempFiles = new ArrayList<TempFile>();
         }
 
-        public Method getRequestMethod() {
-            return requestMethod;
+        @Override
+        public TempFile createTempFile() throws Exception {
+            DefaultTempFile tempFile = new DefaultTempFile(tmpdir);
+            tempFiles.add(tempFile);
+            return tempFile;
         }
 
-        public void setRequestMethod(Method requestMethod) {
-            this.requestMethod = requestMethod;
+        @Override
+        public void clear() {
+            if (cleaner != null) {
+                cleaner.schedule(tempFiles);
+            } else {
+                for (TempFile file : tempFiles) {
+                    try {
+                        file.delete();
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+            tempFiles.clear();
         }
+    }
 
-        public void setChunkedTransfer(boolean chunkedTransfer) {
-            this.chunkedTransfer = chunkedTransfer;
+    /**
+     * Default strategy for creating and cleaning up temporary files.
+     * <p/>
+     * <p></p></[>By default, files are created by <code>File.createTempFile()</code> in
+     * the directory specified.</p>
+     */
+    public static class DefaultTempFile implements TempFile {
+        private File file;
+        private OutputStream fstream;
+
+        public DefaultTempFile(String tempdir) throws IOException {
+            file = File.createTempFile("NanoHTTPD-", "", new File(tempdir));
         }
 
-        public interface IStatus {
-            int getRequestStatus();
-            String getDescription();
+        @Override
+        public OutputStream open() throws Exception {
+            if (fstream == null) {
+                fstream = new FileOutputStream(file);
+            }
+            return fstream;
         }
 
-        /**
+        @Override
+        public void delete() throws Exception {
+            safeClose(fstream);
+            file.delete();
+        }
+
+        @Override
+        public String getName() {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Deletes temp files on a background thread.
+     * <p/>
+     * <p>Temp files handed to <code>schedule()</code> are queued, and the cleaner thread takes
+     * all files queued at once and deletes them as one batch.  <code>start()</code> and
+     * <code>shutdown()</code> also delete files left behind in the cleaner's directory, for
+     * instance by a crashed server.  The default temp file managers of a server with a cleaner
+     * create their files in that directory, which should not be shared with another running
+     * server.  Until the cleaner is started, files are deleted on the calling thread.</p>
+     * <p>A cleaner made without a directory creates one of its own in <code>java.io.tmpdir</code>
+     * and holds a lock on it while in use.  On <code>start()</code> it also removes the directories
+     * of such cleaners whose lock is free, that is whose server is gone without shutting down.</p>
+     */
+    public static class TempFileCleaner {
+        private static final int BATCH_SIZE = 256;
+
+        private static final String OWN_TMPDIR_PREFIX = "NanoHTTPD-server-";
+        private static final String LOCK_FILE_NAME = ".lock";
+
+        private final File tmpdir;
+        private final boolean ownsTmpdir;
+        private RandomAccessFile lockFile;
+        private FileLock lock;
+        private final BlockingQueue<TempFile> queue = new LinkedBlockingQueue<TempFile>();
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong leftoversDeleted = new AtomicLong();
+        private volatile Thread thread;
+
+        /**
+         * Uses a new directory in <code>java.io.tmpdir</code>, which is removed on <code>shutdown()</code>.
+         */
+        public TempFileCleaner() {
+            this(new File(System.getProperty("java.io.tmpdir"), OWN_TMPDIR_PREFIX + UUID.randomUUID()), true);
+        }
+
+        /**
+         * @param tmpdir directory for the temp files, searched for leftovers.
+         */
+        public TempFileCleaner(String tmpdir) {
+            this(new File(tmpdir), false);
+        }
+
+        private TempFileCleaner(File tmpdir, boolean ownsTmpdir) {
+            this.tmpdir = tmpdir;
+            this.ownsTmpdir = ownsTmpdir;
+            tmpdir.mkdirs();
+            if (ownsTmpdir) {
+                lockTmpdir();
+            }
+        }
+
+        /**
+         * @return the directory the default temp file managers create their files in.
+         */
+        public String getTmpdir() {
+            return tmpdir.getPath();
+        }
+
+        /**
+         * Deletes leftover temp files and starts the cleaner thread.
+         */
+        public synchronized void start() {
+            if (thread != null) {
+                return;
+            }
+            tmpdir.mkdirs();
+            if (ownsTmpdir) {
+                if (lock == null) {
+                    lockTmpdir();
+                }
+                deleteAbandonedTmpdirs();
+            }
+            deleteLeftovers(tmpdir);
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<TempFile> batch = new ArrayList<TempFile>(BATCH_SIZE);
+                    try {
+                        while (true) {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, BATCH_SIZE - 1);
+                            delete(batch);
+                            batch.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        // shut down
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.setName("NanoHttpd Temp File Cleaner");
+            t.start();
+            thread = t;
+        }
+
+        /**
+         * Stops the cleaner thread, then deletes the files still queued and any leftovers.
+         */
+        public synchronized void shutdown() throws InterruptedException {
+            Thread t = thread;
+            if (t != null) {
+                thread = null;
+                t.interrupt();
+                t.join();
+            }
+            List<TempFile> remaining = new ArrayList<TempFile>();
+            queue.drainTo(remaining);
+            delete(remaining);
+            deleteLeftovers(tmpdir);
+            if (ownsTmpdir) {
+                unlockTmpdir();
+                tmpdir.delete();
+            }
+        }
+
+        /**
+         * Queues the files for deletion.
+         */
+        public void schedule(List<TempFile> files) {
+            if (files.isEmpty()) {
+                return;
+            }
+            if (thread == null) {
+                pending.addAndGet(files.size());
+                delete(files);
+                return;
+            }
+            pending.addAndGet(files.size());
+            queue.addAll(files);
+            if (thread == null) {
+                // shut down meanwhile
+                List<TempFile> remaining = new ArrayList<TempFile>();
+                queue.drainTo(remaining);
+                delete(remaining);
+            }
+        }
+
+        /**
+         * @return the number of temp files waiting to be deleted.
+         */
+        public long getPendingCount() {
+            return pending.get();
+        }
+
+        /**
+         * @return the number of temp files deleted through <code>schedule()</code>.
+         */
+        public long getDeletedCount() {
+            return deleted.get();
+        }
+
+        /**
+         * @return the number of leftover files found in the temp directory and deleted.
+         */
+        public long getLeftoversDeletedCount() {
+            return leftoversDeleted.get();
+        }
+
+        private void delete(List<TempFile> files) {
+            for (TempFile file : files) {
+                try {
+                    file.delete();
+                } catch (Exception ignored) {
+                }
+                pending.decrementAndGet();
+                deleted.incrementAndGet();
+            }
+        }
+
+        private void deleteLeftovers(File dir) {
+            File[] leftovers = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("NanoHTTPD-");
+                }
+            });
+            if (leftovers == null) {
+                return;
+            }
+            for (File leftover : leftovers) {
+                if (leftover.isFile() && leftover.delete()) {
+                    leftoversDeleted.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Marks the directory as in use, so the cleaners of other servers leave it alone.
+         */
+        private void lockTmpdir() {
+            try {
+                lockFile = new RandomAccessFile(new File(tmpdir, LOCK_FILE_NAME), "rw");
+                lock = lockFile.getChannel().tryLock();
+            } catch (IOException e) {
+                safeClose(lockFile);
+                lockFile = null;
+            }
+        }
+
+        private void unlockTmpdir() {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException ignored) {
+                }
+                lock = null;
+            }
+            if (lockFile != null) {
+                safeClose(lockFile);
+                lockFile = null;
+                new File(tmpdir, LOCK_FILE_NAME).delete();
+            }
+        }
+
+        /**
+         * Removes the directories of other cleaners whose lock nobody holds any more.
+         */
+        private void deleteAbandonedTmpdirs() {
+            File[] dirs = tmpdir.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(OWN_TMPDIR_PREFIX) && !name.equals(tmpdir.getName());
+                }
+            });
+            if (dirs == null) {
+                return;
+            }
+            for (File dir : dirs) {
+                File dirLockFile = new File(dir, LOCK_FILE_NAME);
+                if (!dirLockFile.isFile()) {
+                    continue;
+                }
+                boolean abandoned = false;
+                RandomAccessFile file = null;
+                try {
+                    file = new RandomAccessFile(dirLockFile, "rw");
+                    FileLock dirLock = file.getChannel().tryLock();
+                    if (dirLock != null) {
+                        abandoned = true;
+                        try {
+                            deleteLeftovers(dir);
+                        } finally {
+                            dirLock.release();
+                        }
+                    }
+                } catch (IOException ignored) {
+                } catch (OverlappingFileLockException e) {
+                    // locked by a cleaner in this JVM
+                } finally {
+                    safeClose(file);
+                }
+                if (abandoned) {
+                    dirLockFile.delete();
+                    dir.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Strategy for keeping temp data in memory.
+     * <p/>
+     * <p>Temp files are held in pooled memory segments as long as the request stays within
+     * <code>requestBudget</code> bytes and all requests together within <code>globalBudget</code>
+     * bytes.  A temp file that would exceed either is moved to a real file in
+     * <code>java.io.tmpdir</code>, or the directory of the {@link TempFileCleaner} given, and continues
+     * there, as does any temp file whose name is asked for.  Like those of the default temp file
+     * managers, such files are then deleted by the cleaner.
+     * The paths {@link IHTTPSession#parseBody(Map)} puts into its files map are such names, so uploaded
+     * files only stay in memory when they are taken with {@link IHTTPSession#parseBody(Map, Map)}.</p>
+     */
+    public static class MemoryTempFileManagerFactory implements TempFileManagerFactory {
+        static final int SEGMENT_SIZE = 8 * 1024;
+
+        private final long requestBudget;
+        private final long globalBudget;
+        private final String tmpdir;
+        private final TempFileCleaner cleaner;
+        private final AtomicLong memoryUsed = new AtomicLong();
+        private final Queue<byte[]> segments = new ConcurrentLinkedQueue<byte[]>();
+
+        public MemoryTempFileManagerFactory(long requestBudget, long globalBudget) {
+            this(requestBudget, globalBudget, null);
+        }
+
+        /**
+         * @param cleaner deletes the temp files moved to disk, which then go to its directory, or
+         *                null to delete them right away.
+         */
+        public MemoryTempFileManagerFactory(long requestBudget, long globalBudget, TempFileCleaner cleaner) {
+            this.requestBudget = requestBudget;
+            this.globalBudget = globalBudget;
+            this.cleaner = cleaner;
+            this.tmpdir = cleaner != null ? cleaner.getTmpdir() : System.getProperty("java.io.tmpdir");
+        }
+
+        @Override
+        public TempFileManager create() {
+            return new MemoryTempFileManager(this);
+        }
+
+        /**
+         * @return the bytes of temp data currently held in memory, over all requests.
+         */
+        public long getMemoryUsed() {
+            return memoryUsed.get();
+        }
+
+        byte[] allocate(MemoryTempFileManager manager) {
+            if (manager.memoryUsed + SEGMENT_SIZE > requestBudget) {
+                return null;
+            }
+            long used;
+            do {
+                used = memoryUsed.get();
+                if (used + SEGMENT_SIZE > globalBudget) {
+                    return null;
+                }
+            } while (!memoryUsed.compareAndSet(used, used + SEGMENT_SIZE));
+            manager.memoryUsed += SEGMENT_SIZE;
+            byte[] segment = segments.poll();
+            return segment != null ? segment : new byte[SEGMENT_SIZE];
+        }
+
+        void release(MemoryTempFileManager manager, List<byte[]> released) {
+            for (byte[] segment : released) {
+                segments.offer(segment);
+            }
+            long bytes = (long) released.size() * SEGMENT_SIZE;
+            manager.memoryUsed -= bytes;
+            memoryUsed.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Temp file manager of {@link MemoryTempFileManagerFactory}, one per connection.
+     */
+    public static class MemoryTempFileManager implements TempFileManager {
+        private final MemoryTempFileManagerFactory factory;
+        private final List<MemoryTempFile> tempFiles = new ArrayList<MemoryTempFile>();
+        private long memoryUsed;
+
+        MemoryTempFileManager(MemoryTempFileManagerFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public TempFile createTempFile() throws Exception {
+            MemoryTempFile tempFile = new MemoryTempFile(this);
+            tempFiles.add(tempFile);
+            return tempFile;
+        }
+
+        @Override
+        public void clear() {
+            List<TempFile> onDisk = null;
+            for (MemoryTempFile file : tempFiles) {
+                if (factory.cleaner != null && !file.isInMemory()) {
+                    if (onDisk == null) {
+                        onDisk = new ArrayList<TempFile>();
+                    }
+                    onDisk.add(file);
+                    continue;
+                }
+                try {
+                    file.delete();
+                } catch (Exception ignored) {
+                }
+            }
+            if (onDisk != null) {
+                factory.cleaner.schedule(onDisk);
+            }
+            tempFiles.clear();
+        }
+    }
+
+    /**
+     * Temp file kept in memory segments until it outgrows its budget or its name is needed.
+     */
+    public static class MemoryTempFile implements TempFile {
+        private final MemoryTempFileManager manager;
+        private final List<byte[]> segments = new ArrayList<byte[]>();
+        private long length;
+        private DefaultTempFile file;
+        private OutputStream fileStream;
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                MemoryTempFile.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (fileStream != null) {
+                    fileStream.flush();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        MemoryTempFile(MemoryTempFileManager manager) {
+            this.manager = manager;
+        }
+
+        @Override
+        public OutputStream open() {
+            return out;
+        }
+
+        public boolean isInMemory() {
+            return file == null;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        /**
+         * Reads the data back, from memory or from the file it was moved to.
+         */
+        public InputStream getInputStream() throws IOException {
+            if (file != null) {
+                fileStream.flush();
+                return new FileInputStream(file.getName());
+            }
+            InputStream[] parts = new InputStream[segments.size()];
+            long left = length;
+            for (int i = 0; i < parts.length; i++) {
+                int len = (int) Math.min(left, MemoryTempFileManagerFactory.SEGMENT_SIZE);
+                parts[i] = new ByteArrayInputStream(segments.get(i), 0, len);
+                left -= len;
+            }
+            return new SequenceInputStream(Collections.enumeration(Arrays.asList(parts)));
+        }
+
+        /**
+         * Moves the data to a real file, so it has a name.
+         */
+        @Override
+        public String getName() {
+            try {
+                spill();
+                fileStream.flush();
+            } catch (IOException e) {
+                throw new Error(e); // we won't recover, so throw an error
+            }
+            return file.getName();
+        }
+
+        @Override
+        public void delete() throws Exception {
+            releaseSegments();
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && file == null) {
+                int used = (int) (length % MemoryTempFileManagerFactory.SEGMENT_SIZE);
+                if (used == 0 && length == (long) segments.size() * MemoryTempFileManagerFactory.SEGMENT_SIZE) {
+                    byte[] segment = manager.factory.allocate(manager);
+                    if (segment == null) {
+                        spill();
+                        break;
+                    }
+                    segments.add(segment);
+                }
+                int n = Math.min(len, MemoryTempFileManagerFactory.SEGMENT_SIZE - used);
+                System.arraycopy(b, off, segments.get(segments.size() - 1), used, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+            if (len > 0) {
+                fileStream.write(b, off, len);
+                length += len;
+            }
+        }
+
+        private void spill() throws IOException {
+            if (file != null) {
+                return;
+            }
+            file = new DefaultTempFile(manager.factory.tmpdir);
+            try {
+                fileStream = file.open();
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+            long left = length;
+            for (byte[] segment : segments) {
+                int len = (int) Math.min(left, segment.length);
+                fileStream.write(segment, 0, len);
+                left -= len;
+            }
+            releaseSegments();
+        }
+
+        private void releaseSegments() {
+            if (!segments.isEmpty()) {
+                manager.factory.release(manager, segments);
+                segments.clear();
+            }
+        }
+    }
+
+    /**
+     * HTTP response. Return one of these from serve().
+     */
+    public static class Response {
+        /**
+         * HTTP status code after processing, e.g. "200 OK", HTTP_OK
+         */
+        private IStatus status;
+        /**
+         * MIME type of content, e.g. "text/html"
+         */
+        private String mimeType;
+        /**
+         * Data of the response, may be null.
+         */
+        private InputStream data;
+        /**
+         * Number of bytes of <code>data</code> to send, or -1 to use <code>data.available()</code>.
+         */
+        private long contentLength = -1;
+        /**
+         * File sent as the body instead of <code>data</code>, may be null.
+         */
+        private FileChannel fileChannel;
+        private long filePosition;
+        private long fileCount;
+        /**
+         * The socket channel of the connection, if it has one.  File bodies are
+         * transferred to it directly.
+         */
+        private WritableByteChannel outputChannel;
+        /**
+         * Headers for the HTTP response. Use addHeader() to add lines.
+         * This is a LinkedHashMap so that the order of the headers added is
+         * available if required.
+         */
+        private Map<String, List<String>> header = new LinkedHashMap<String, List<String>>();
+        /**
+         * Lower case names of the headers in <code>header</code>, so the default headers
+         * can be skipped without comparing every name.
+         */
+        private Set<String> lowerCaseHeaderNames = new HashSet<String>();
+        /**
+         * The request method that spawned this response.
+         */
+        private Method requestMethod;
+        /**
+         * Use chunkedTransfer
+         */
+        private boolean chunkedTransfer;
+        /**
+         * The request's Accept-Encoding header, set when the server has compression enabled.
+         */
+        private boolean compression;
+        private String acceptEncoding;
+        private int compressionLevel;
+        private int compressionMinSize;
+        /**
+         * Keep-alive decision of the session; responses sent without one keep the connection open.
+         */
+        private boolean keepAlive = true;
+        private int keepAliveTimeout;
+        private int keepAliveMax = -1;
+
+        /**
+         * Default constructor: response = HTTP_OK, mime = MIME_HTML and your supplied message
+         */
+        public Response(String msg) {
+            this(Status.OK, MIME_HTML, msg);
+        }
+
+        /**
+         * Basic constructor.
+         */
+        public Response(IStatus status, String mimeType, InputStream data) {
+            this.status = status;
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+
+        /**
+         * Constructor for a body of a known length.  Use this for streams longer than
+         * <code>Integer.MAX_VALUE</code> bytes, which <code>available()</code> can't report.
+         */
+        public Response(IStatus status, String mimeType, InputStream data, long contentLength) {
+            this(status, mimeType, data);
+            this.contentLength = contentLength;
+        }
+
+        /**
+         * Constructor for a body of <code>count</code> bytes of a file, starting at <code>position</code>.
+         * <p/>
+         * <p>On connections with a socket channel the bytes are handed over with
+         * <code>FileChannel.transferTo()</code>, so the OS can send them without copying them
+         * through the JVM (sendfile on Linux).  Elsewhere, as on the classic listener, they are
+         * copied through a buffer.  The channel is closed once the response has been sent.</p>
+         */
+        public Response(IStatus status, String mimeType, FileChannel channel, long position, long count) {
+            this.status = status;
+            this.mimeType = mimeType;
+            this.fileChannel = channel;
+            this.filePosition = position;
+            this.fileCount = count;
+        }
+
+        /**
+         * Convenience method that makes an InputStream out of given text.
+         */
+        public Response(IStatus status, String mimeType, String txt) {
+            this.status = status;
+            this.mimeType = mimeType;
+            try {
+                this.data = txt != null ? new ByteArrayInputStream(txt.getBytes("UTF-8")) : null;
+            } catch (java.io.UnsupportedEncodingException uee) {
+                uee.printStackTrace();
+            }
+        }
+
+        /**
+         * Adds given line to the header.
+         */
+        public void addHeader(String name, String value) {
+            addHeader(name, value, false);
+        }
+
+        public void addHeader(String name, String value, boolean allowMultiple) {
+            List<String> list = header.get(name);
+            if (list==null) {
+                list = new ArrayList<String>();
+                header.put(name, list);
+                lowerCaseHeaderNames.add(name.toLowerCase(Locale.US));
+            }
+            
+            if (! allowMultiple && ! list.isEmpty()) {
+                list.remove(0);
+            }
+            list.add(value);
+        }
+
+        /**
+         * Return the first of the headers of the given name
+         * @param name
+         * @return
+         */
+        public String getHeader(String name) {
+            List<String> list = header.get(name);
+            return (list==null || list.isEmpty()) ? null : list.get(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<String> getHeaderValues(String name) {
+            List<String> list = header.get(name);
+            return (list==null || list.isEmpty()) ? Collections.EMPTY_LIST : list;
+        }
+
+        /**
+         * Sends given response to the socket.
+         */
+        protected void send(OutputStream outputStream) {
+            HeaderBuffer hb = HeaderBuffer.get();
+            try {
+                if (status == null) {
+                    throw new Error("sendResponse(): Status can't be null.");
+                }
+                if (status instanceof Status) {
+                    hb.append(((Status) status).statusLine);
+                } else {
+                    hb.append("HTTP/1.1 ").append(status.getDescription()).append(" \r\n");
+                }
+
+                if (mimeType != null) {
+                    hb.header(HeaderBuffer.CONTENT_TYPE, mimeType);
+                }
+
+                if (!headerAlreadySent("date")) {
+                    hb.append(HeaderBuffer.DATE).append(HttpDate.now()).append(HeaderBuffer.CRLF);
+                }
+
+                long pending = -1;
+                if (fileChannel != null) {
+                    pending = fileCount;
+                } else if (data == null) {
+                    pending = 0;
+                } else if (contentLength >= 0) {
+                    pending = contentLength;
+                } else if (!chunkedTransfer || requestMethod == Method.HEAD) {
+                    pending = data.available();
+                }
+
+                String encoding = null;
+                if (compression && isCompressible()) {
+                    if (!headerAlreadySent("vary")) {
+                        hb.append(HeaderBuffer.VARY_ACCEPT_ENCODING);
+                    }
+                    if (pending < 0 || pending >= compressionMinSize) {
+                        encoding = negotiateEncoding(acceptEncoding);
+                    }
+                }
+
+                for (Map.Entry<String, List<String>> entry : header.entrySet()) {
+                    if (encoding != null && "content-length".equalsIgnoreCase(entry.getKey())) {
+                        continue;
+                    }
+                    for (String value : entry.getValue()) {
+                        hb.append(entry.getKey()).append(HeaderBuffer.SEPARATOR).append(value).append(HeaderBuffer.CRLF);
+                    }
+                }
+
+                sendConnectionHeader(hb);
+
+                if (encoding != null) {
+                    sendCompressed(outputStream, hb, encoding, pending);
+                } else if (fileChannel != null) {
+                    sendContentLengthHeader(hb, fileCount);
+                    hb.append(HeaderBuffer.CRLF).writeTo(outputStream);
+                    sendFileRegion(outputStream);
+                } else if (requestMethod != Method.HEAD && chunkedTransfer) {
+                    sendAsChunked(outputStream, hb);
+                } else {
+                    sendContentLengthHeader(hb, pending);
+                    hb.append(HeaderBuffer.CRLF).writeTo(outputStream);
+                    sendAsFixedLength(outputStream, pending);
+                }
+                outputStream.flush();
+            } catch (IOException ioe) {
+                // Couldn't write? No can do.
+            } finally {
+                hb.release();
+                safeClose(data);
+                safeClose(fileChannel);
+            }
+        }
+
+        /**
+         * Bodies that are already compressed, partial or empty by definition are sent as they are.
+         */
+        private boolean isCompressible() {
+            if (data == null && fileChannel == null) {
+                return false;
+            }
+            int code = status.getRequestStatus();
+            if (code < 200 || code == 204 || code == 206 || code == 304) {
+                return false;
+            }
+            if (headerAlreadySent("content-encoding") || headerAlreadySent("content-range")) {
+                return false;
+            }
+            return isCompressibleMimeType(mimeType);
+        }
+
+        static boolean isCompressibleMimeType(String mimeType) {
+            if (mimeType == null) {
+                return false;
+            }
+            String mime = mimeType.toLowerCase(Locale.US);
+            int semicolon = mime.indexOf(';');
+            if (semicolon >= 0) {
+                mime = mime.substring(0, semicolon).trim();
+            }
+            return mime.startsWith("text/") || mime.endsWith("+xml") || mime.endsWith("+json")
+                    || mime.equals("application/json") || mime.equals("application/javascript")
+                    || mime.equals("application/x-javascript") || mime.equals("application/xml");
+        }
+
+        /**
+         * Picks gzip or deflate from an Accept-Encoding header, honouring q-values.  Returns
+         * null if the client accepts neither.
+         */
+        static String negotiateEncoding(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            float gzip = -1;
+            float deflate = -1;
+            float any = -1;
+            StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+            while (st.hasMoreTokens()) {
+                String token = st.nextToken();
+                float q = 1;
+                int semicolon = token.indexOf(';');
+                if (semicolon >= 0) {
+                    String param = token.substring(semicolon + 1).trim();
+                    token = token.substring(0, semicolon);
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Float.parseFloat(param.substring(2).trim());
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                String coding = token.trim().toLowerCase(Locale.US);
+                if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                    gzip = Math.max(gzip, q);
+                } else if (coding.equals("deflate")) {
+                    deflate = Math.max(deflate, q);
+                } else if (coding.equals("*")) {
+                    any = q;
+                }
+            }
+            if (gzip < 0) {
+                gzip = any;
+            }
+            if (deflate < 0) {
+                deflate = any;
+            }
+            if (gzip <= 0 && deflate <= 0) {
+                return null;
+            }
+            return gzip >= deflate ? "gzip" : "deflate";
+        }
+
+        private void sendCompressed(OutputStream outputStream, HeaderBuffer hb, String encoding, long pending) throws IOException {
+            hb.append(HeaderBuffer.CONTENT_ENCODING).append(encoding).append(HeaderBuffer.CRLF);
+            hb.append(HeaderBuffer.TRANSFER_ENCODING_CHUNKED).append(HeaderBuffer.CRLF).writeTo(outputStream);
+            if (requestMethod == Method.HEAD) {
+                return;
+            }
+
+            ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream);
+            DeflaterOutputStream compressed;
+            Deflater deflater;
+            if ("gzip".equals(encoding)) {
+                LeveledGZIPOutputStream gzip = new LeveledGZIPOutputStream(chunked, compressionLevel);
+                compressed = gzip;
+                deflater = gzip.getDeflater();
+            } else {
+                deflater = new Deflater(compressionLevel);
+                compressed = new DeflaterOutputStream(chunked, deflater, 16 * 1024);
+            }
+            try {
+                if (fileChannel != null) {
+                    copyFileRegion(compressed);
+                } else {
+                    copyData(compressed, pending);
+                }
+                compressed.finish();
+                chunked.finish();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        public void setCompression(String acceptEncoding, int compressionLevel, int compressionMinSize) {
+            this.compression = true;
+            this.acceptEncoding = acceptEncoding;
+            this.compressionLevel = compressionLevel;
+            this.compressionMinSize = compressionMinSize;
+        }
+
+        /**
+         * @deprecated no longer called by {@link #send(OutputStream)}, which writes the header into
+         * a byte buffer instead of a <code>PrintWriter</code>; overriding it has no effect.
+         */
+        @Deprecated
+        protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Set<String> header, long size) {
+            if (! headerAlreadySent("content-length")) {
+                pw.print("Content-Length: " + size + "\r\n");
+            }
+        }
+
+        /**
+         * @deprecated no longer called by {@link #send(OutputStream)}, which writes the header into
+         * a byte buffer instead of a <code>PrintWriter</code>; overriding it has no effect.
+         */
+        @Deprecated
+        protected void sendConnectionHeaderIfNotAlreadyPresent(PrintWriter pw, Set<String> header) {
+            if (! headerAlreadySent("connection")) {
+                if (!keepAlive) {
+                    pw.print("Connection: close\r\n");
+                    return;
+                }
+                pw.print("Connection: keep-alive\r\n");
+                if (keepAliveTimeout > 0 && !headerAlreadySent("keep-alive")) {
+                    pw.print("Keep-Alive: timeout=" + keepAliveTimeout + (keepAliveMax >= 0 ? ", max=" + keepAliveMax : "") + "\r\n");
+                }
+            }
+        }
+
+        private void sendContentLengthHeader(HeaderBuffer hb, long size) {
+            if (! headerAlreadySent("content-length")) {
+                hb.append(HeaderBuffer.CONTENT_LENGTH).append(size).append(HeaderBuffer.CRLF);
+            }
+        }
+
+        private void sendConnectionHeader(HeaderBuffer hb) {
+            if (! headerAlreadySent("connection")) {
+                if (!keepAlive) {
+                    hb.append(HeaderBuffer.CONNECTION_CLOSE);
+                    return;
+                }
+                // This should hopefully satisfy any ancient clients out there
+                // who still want/need this.
+                hb.append(HeaderBuffer.CONNECTION_KEEP_ALIVE);
+                if (keepAliveTimeout > 0 && !headerAlreadySent("keep-alive")) {
+                    hb.append(HeaderBuffer.KEEP_ALIVE_TIMEOUT).append(keepAliveTimeout);
+                    if (keepAliveMax >= 0) {
+                        hb.append(", max=").append(keepAliveMax);
+                    }
+                    hb.append(HeaderBuffer.CRLF);
+                }
+            }
+        }
+
+        /**
+         * Set by the session: whether the connection stays open after this response, and the
+         * parameters advertised in the <code>Keep-Alive</code> header.
+         *
+         * @param timeout seconds an idle connection is kept open, 0 to send no <code>Keep-Alive</code> header.
+         * @param max     requests still allowed on the connection, or -1 for no limit.
+         */
+        void setKeepAlive(boolean keepAlive, int timeout, int max) {
+            this.keepAlive = keepAlive;
+            this.keepAliveTimeout = timeout;
+            this.keepAliveMax = max;
+        }
+
+        /**
+         * @return true if the connection has to be closed after this response, because the
+         * session decided so or the handler set <code>Connection: close</code>.
+         */
+        boolean closesConnection() {
+            if (!keepAlive) {
+                return true;
+            }
+            if (headerAlreadySent("connection")) {
+                for (Map.Entry<String, List<String>> entry : header.entrySet()) {
+                    if ("connection".equalsIgnoreCase(entry.getKey())) {
+                        for (String value : entry.getValue()) {
+                            if (value.toLowerCase(Locale.US).contains("close")) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean headerAlreadySent(String lowerCaseName) {
+            return lowerCaseHeaderNames.contains(lowerCaseName);
+        }
+
+        private void sendAsChunked(OutputStream outputStream, HeaderBuffer hb) throws IOException {
+            hb.append(HeaderBuffer.TRANSFER_ENCODING_CHUNKED).append(HeaderBuffer.CRLF).writeTo(outputStream);
+            ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream);
+            copyData(chunked, -1);
+            chunked.finish();
+        }
+
+        private void sendAsFixedLength(OutputStream outputStream, long pending) throws IOException {
+            if (requestMethod != Method.HEAD && data != null) {
+                copyData(outputStream, pending);
+            }
+        }
+
+        /**
+         * Copies <code>pending</code> bytes of <code>data</code>, or all of it if <code>pending</code> is negative.
+         */
+        private void copyData(OutputStream outputStream, long pending) throws IOException {
+            int BUFFER_SIZE = 16 * 1024;
+            if (pending == 0) {
+                return;
+            }
+            byte[] buff = BufferPool.COPY.acquire();
+            try {
+                while (pending != 0) {
+                    int read = pending < 0 ? data.read(buff) : data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : (int) pending));
+                    if (read <= 0) {
+                        break;
+                    }
+                    outputStream.write(buff, 0, read);
+                    if (pending > 0) {
+                        pending -= read;
+                    }
+                }
+            } finally {
+                BufferPool.COPY.release(buff);
+            }
+        }
+
+        private void sendFileRegion(OutputStream outputStream) throws IOException {
+            if (requestMethod == Method.HEAD) {
+                return;
+            }
+            if (outputChannel == null) {
+                // transferTo() to anything but a socket channel copies more than a plain loop does.
+                copyFileRegion(outputStream);
+                return;
+            }
+            // the header may still be buffered
+            outputStream.flush();
+            long position = filePosition;
+            long pending = fileCount;
+            while (pending > 0) {
+                long sent = fileChannel.transferTo(position, pending, outputChannel);
+                if (sent <= 0) {
+                    throw fileRegionCutShort(outputStream, pending);
+                }
+                position += sent;
+                pending -= sent;
+            }
+        }
+
+        private void copyFileRegion(OutputStream outputStream) throws IOException {
+            byte[] buff = BufferPool.COPY.acquire();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(buff);
+                long position = filePosition;
+                long pending = fileCount;
+                while (pending > 0) {
+                    buffer.clear();
+                    if (pending < buffer.capacity()) {
+                        buffer.limit((int) pending);
+                    }
+                    int read = fileChannel.read(buffer, position);
+                    if (read <= 0) {
+                        throw fileRegionCutShort(outputStream, pending);
+                    }
+                    outputStream.write(buff, 0, read);
+                    position += read;
+                    pending -= read;
+                }
+            } finally {
+                BufferPool.COPY.release(buff);
+            }
+        }
+
+        /**
+         * The file is shorter than the Content-Length already sent, so the client can only tell the
+         * body is incomplete if the connection ends.
+         */
+        private IOException fileRegionCutShort(OutputStream outputStream, long pending) {
+            safeClose(outputStream);
+            return new EOFException("File ended " + pending + " bytes before the end of the response body");
+        }
+
+        public IStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * Whether the final flush of this response may wait until the responses to the
+         * pipelined requests behind it are written too.  Not for file regions, which are
+         * written to the channel directly, nor for upgraded connections.
+         */
+        boolean isBatchable() {
+            return fileChannel == null && status != Status.SWITCH_PROTOCOL;
+        }
+
+        public void setStatus(Status status) {
+            this.status = status;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public void setMimeType(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public InputStream getData() {
+            return data;
+        }
+
+        public void setData(InputStream data) {
+            this.data = data;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public void setContentLength(long contentLength) {
+            this.contentLength = contentLength;
+        }
+
+        public Method getRequestMethod() {
+            return requestMethod;
+        }
+
+        public void setRequestMethod(Method requestMethod) {
+            this.requestMethod = requestMethod;
+        }
+
+        /**
+         * Set by the session before sending, if the connection has a socket channel.
+         */
+        protected void setOutputChannel(WritableByteChannel outputChannel) {
+            this.outputChannel = outputChannel;
+        }
+
+        public void setChunkedTransfer(boolean chunkedTransfer) {
+            this.chunkedTransfer = chunkedTransfer;
+        }
+
+        public interface IStatus {
+            int getRequestStatus();
+            String getDescription();
+        }
+
+        /**
          * Some HTTP response status codes
          */
-        public enum Status implements IStatus {
-            SWITCH_PROTOCOL(101, "Switching Protocols"), 
-            OK(200, "OK"), 
-            CREATED(201, "Created"),
-            ACCEPTED(202, "Accepted"), 
-            NO_CONTENT(204, "No Content"), 
-            PARTIAL_CONTENT(206, "Partial Content"), 
-            REDIRECT(301, "Moved Permanently"),
-            NOT_MODIFIED(304, "Not Modified"),
-            BAD_REQUEST(400, "Bad Request"), 
-            UNAUTHORIZED(401, "Unauthorized"), 
-            FORBIDDEN(403, "Forbidden"), 
-            NOT_FOUND(404, "Not Found"), 
-            METHOD_NOT_ALLOWED(405, "Method Not Allowed"), 
-            RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
-            INTERNAL_ERROR(500, "Internal Server Error");
-            
-            private final int requestStatus;
-            private final String description;
+        public enum Status implements IStatus {
+            CONTINUE(100, "Continue"),
+            SWITCH_PROTOCOL(101, "Switching Protocols"), 
+            OK(200, "OK"), 
+            CREATED(201, "Created"),
+            ACCEPTED(202, "Accepted"), 
+            NO_CONTENT(204, "No Content"), 
+            PARTIAL_CONTENT(206, "Partial Content"), 
+            REDIRECT(301, "Moved Permanently"),
+            NOT_MODIFIED(304, "Not Modified"),
+            BAD_REQUEST(400, "Bad Request"), 
+            UNAUTHORIZED(401, "Unauthorized"), 
+            FORBIDDEN(403, "Forbidden"), 
+            NOT_FOUND(404, "Not Found"), 
+            METHOD_NOT_ALLOWED(405, "Method Not Allowed"), 
+            REQUEST_ENTITY_TOO_LARGE(413, "Request Entity Too Large"),
+            RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
+            INTERNAL_ERROR(500, "Internal Server Error"),
+            SERVICE_UNAVAILABLE(503, "Service Unavailable");
+            
+            private final int requestStatus;
+            private final String description;
+            private final byte[] statusLine;
+
+            Status(int requestStatus, String description) {
+                this.requestStatus = requestStatus;
+                this.description = description;
+                this.statusLine = HeaderBuffer.ascii("HTTP/1.1 " + requestStatus + " " + description + " \r\n");
+            }
+
+            @Override
+            public int getRequestStatus() {
+                return this.requestStatus;
+            }
+
+            @Override
+            public String getDescription() {
+                return "" + this.requestStatus + " " + description;
+            }
+        }
+    }
+
+    /**
+     * Byte buffer the response header is serialized into before it is written to the socket
+     * in one go.  Buffers are reused through a small shared pool, see {@link #get()} and {@link #release()}.
+     */
+    static final class HeaderBuffer {
+        static final byte[] CRLF = ascii("\r\n");
+        static final byte[] SEPARATOR = ascii(": ");
+        static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+        static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+        static final byte[] DATE = ascii("Date: ");
+        static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+        static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+        static final byte[] KEEP_ALIVE_TIMEOUT = ascii("Keep-Alive: timeout=");
+        static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+        static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+        static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+
+        private static final int INITIAL_SIZE = 512;
+        private static final int MAX_POOLED_SIZE = 16 * 1024;
+        private static final int MAX_POOLED = 64;
+        private static final Queue<HeaderBuffer> POOL = new ConcurrentLinkedQueue<HeaderBuffer>();
+        private static final AtomicInteger pooled = new AtomicInteger();
+
+        private byte[] buf = new byte[INITIAL_SIZE];
+        private int count;
+
+        static HeaderBuffer get() {
+            HeaderBuffer hb = POOL.poll();
+            if (hb == null) {
+                return new HeaderBuffer();
+            }
+            pooled.decrementAndGet();
+            return hb;
+        }
+
+        static byte[] ascii(String s) {
+            byte[] b = new byte[s.length()];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte) s.charAt(i);
+            }
+            return b;
+        }
+
+        public HeaderBuffer append(byte[] b) {
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, buf, count, b.length);
+            count += b.length;
+            return this;
+        }
+
+        public HeaderBuffer append(String s) {
+            int len = s.length();
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // Rare: let the platform charset encode it, as the PrintWriter used to.
+                    return append(s.substring(i).getBytes());
+                }
+                buf[count++] = (byte) c;
+            }
+            return this;
+        }
+
+        public HeaderBuffer append(long value) {
+            return append(Long.toString(value));
+        }
+
+        public HeaderBuffer header(byte[] nameAndSeparator, String value) {
+            return append(nameAndSeparator).append(value).append(CRLF);
+        }
+
+        public HeaderBuffer writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+            count = 0;
+            return this;
+        }
+
+        void release() {
+            count = 0;
+            if (buf.length > MAX_POOLED_SIZE) {
+                buf = new byte[INITIAL_SIZE];
+            }
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                POOL.offer(this);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, count + extra)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+    }
+
+    /**
+     * Gzip stream compressing at a given level.  Its deflater is not ended by
+     * <code>finish()</code>, see {@link #getDeflater()}.
+     */
+    static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 16 * 1024);
+            def.setLevel(level);
+        }
+
+        /**
+         * @return the deflater, to be ended once the stream is done with, as the stream itself is
+         * not closed: that would close the connection.
+         */
+        Deflater getDeflater() {
+            return def;
+        }
+    }
+
+    /**
+     * Writes everything as HTTP/1.1 chunks.  {@link #finish()} writes the last chunk; closing the
+     * stream does the same but leaves the underlying stream open, as it belongs to the connection.
+     */
+    static final class ChunkedOutputStream extends FilterOutputStream {
+        private static final byte[] CRLF = HeaderBuffer.CRLF;
+        private static final byte[] LAST_CHUNK = HeaderBuffer.ascii("0\r\n\r\n");
+        private static final byte[] HEX = HeaderBuffer.ascii("0123456789abcdef");
+
+        private final byte[] sizeLine = new byte[10];
+        private boolean finished;
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            int pos = sizeLine.length - 2;
+            sizeLine[pos] = '\r';
+            sizeLine[pos + 1] = '\n';
+            for (int size = len; size != 0; size >>>= 4) {
+                sizeLine[--pos] = HEX[size & 0xf];
+            }
+            out.write(sizeLine, pos, sizeLine.length - pos);
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        void finish() throws IOException {
+            if (!finished) {
+                finished = true;
+                out.write(LAST_CHUNK);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.flush();
+        }
+    }
+
+    /**
+     * The output of a session, whose flush can be held back while pipelined requests are served.
+     */
+    static final class PipelinedOutputStream extends FilterOutputStream {
+        private boolean deferFlush;
+        private boolean flushPending;
+
+        PipelinedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void setDeferFlush(boolean deferFlush) {
+            this.deferFlush = deferFlush;
+        }
+
+        boolean isFlushPending() {
+            return flushPending;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (deferFlush) {
+                flushPending = true;
+            } else {
+                flushPending = false;
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Pushback stream that hands out the pushed back bytes on their own.  A plain
+     * <code>PushbackInputStream</code> goes on to read the underlying stream when the pushed
+     * back bytes don't fill the caller's buffer, which blocks when they hold pipelined requests
+     * the client expects answers to before it sends anything else.  The pushback buffer is
+     * taken from {@link BufferPool#REQUEST} and only held while it has bytes in it.
+     */
+    static final class RequestInputStream extends FilterInputStream {
+        private byte[] pushback;
+        private int pos;
+        private int end;
+
+        RequestInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Pushes back <code>len</code> bytes, to be read before anything already pushed back.
+         */
+        void unread(byte[] b, int off, int len) throws IOException {
+            int pending = end - pos;
+            if (pending + len > HTTPSession.BUFSIZE) {
+                throw new IOException("Push back buffer is full");
+            }
+            if (pushback == null) {
+                pushback = BufferPool.REQUEST.acquire();
+            }
+            System.arraycopy(pushback, pos, pushback, len, pending);
+            System.arraycopy(b, off, pushback, 0, len);
+            pos = 0;
+            end = len + pending;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos < end) {
+                int b = pushback[pos++] & 0xff;
+                releaseIfEmpty();
+                return b;
+            }
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos < end && len > 0) {
+                int n = Math.min(len, end - pos);
+                System.arraycopy(pushback, pos, b, off, n);
+                pos += n;
+                releaseIfEmpty();
+                return n;
+            }
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (pos < end) {
+                int skipped = (int) Math.min(n, end - pos);
+                pos += skipped;
+                releaseIfEmpty();
+                return skipped;
+            }
+            return in.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (end - pos) + in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pos = end;
+            releaseIfEmpty();
+            in.close();
+        }
+
+        private void releaseIfEmpty() {
+            if (pos == end && pushback != null) {
+                BufferPool.REQUEST.release(pushback);
+                pushback = null;
+                pos = 0;
+                end = 0;
+            }
+        }
+    }
+
+    /**
+     * Flushes the responses held back for a pipelined batch before a read that would wait for
+     * the client, which may not send more until it has them.
+     */
+    static final class FlushingInputStream extends FilterInputStream {
+        private final PipelinedOutputStream output;
+
+        FlushingInputStream(InputStream in, PipelinedOutputStream output) {
+            super(in);
+            this.output = output;
+        }
+
+        @Override
+        public int read() throws IOException {
+            flushIfBlocking();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            flushIfBlocking();
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            flushIfBlocking();
+            return in.skip(n);
+        }
+
+        private void flushIfBlocking() throws IOException {
+            if (output.isFlushPending() && in.available() == 0) {
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * A small pool of equally sized byte arrays shared by all threads.  Unlike a per-thread
+     * cache it doesn't keep a buffer alive for every virtual thread, that is for every connection.
+     */
+    static final class BufferPool {
+        /**
+         * Buffers for copying response bodies.
+         */
+        static final BufferPool COPY = new BufferPool(16 * 1024, 64);
+        /**
+         * Buffers holding a request header while the request is served.
+         */
+        static final BufferPool REQUEST = new BufferPool(HTTPSession.BUFSIZE, 64);
+
+        private final int bufferSize;
+        private final int maxPooled;
+        private final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        byte[] acquire() {
+            byte[] buffer = pool.poll();
+            if (buffer == null) {
+                return new byte[bufferSize];
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        void release(byte[] buffer) {
+            if (pooled.incrementAndGet() <= maxPooled) {
+                pool.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Buffers what is written to a connection, so the header and a small body of a response leave
+     * in a single write.
+     * <p/>
+     * <p>The buffer is taken from a pool shared by all connections on the first write, and handed
+     * back on <code>flush()</code>, so idle keep-alive connections hold none.  A connection with a
+     * channel gets a direct <code>ByteBuffer</code>, and writes of at least a buffer's size go out
+     * uncopied together with the buffered bytes as one gathering write.  At most
+     * <code>MAX_POOLED</code> direct buffers are ever allocated, as their memory is only freed by
+     * the garbage collector; beyond that a heap buffer is used for the response.  A connection
+     * without a channel gets a heap array written straight to its stream.</p>
+     */
+    static final class ConnectionOutputStream extends OutputStream {
+        static final int BUFFER_SIZE = 16 * 1024;
+        private static final int MAX_POOLED = 256;
+        private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+        private static final AtomicInteger directAllocated = new AtomicInteger();
+        private static final BufferPool HEAP_POOL = new BufferPool(BUFFER_SIZE, MAX_POOLED);
+
+        private final OutputStream out;
+        private final WritableByteChannel channel;
+        private final ByteBuffer[] gather = new ByteBuffer[2];
+        /**
+         * The buffer when there is a channel.
+         */
+        private ByteBuffer buffer;
+        /**
+         * The buffer when there is none, and the bytes in it.
+         */
+        private byte[] heap;
+        private int count;
+        private boolean closed;
+
+        /**
+         * @param channel the connection's channel, or null to write through <code>out</code>.
+         */
+        ConnectionOutputStream(OutputStream out, WritableByteChannel channel) {
+            this.out = out;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (channel == null) {
+                if (heap == null) {
+                    heap = HEAP_POOL.acquire();
+                } else if (count == heap.length) {
+                    drain();
+                }
+                heap[count++] = (byte) b;
+                return;
+            }
+            if (buffer == null) {
+                buffer = acquire();
+            } else if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (channel == null) {
+                if (len >= BUFFER_SIZE) {
+                    drain();
+                    out.write(b, off, len);
+                    return;
+                }
+                if (heap == null) {
+                    heap = HEAP_POOL.acquire();
+                } else if (len > heap.length - count) {
+                    drain();
+                }
+                System.arraycopy(b, off, heap, count, len);
+                count += len;
+                return;
+            }
+            if (len >= BUFFER_SIZE) {
+                ByteBuffer data = ByteBuffer.wrap(b, off, len);
+                if (buffer != null && buffer.position() > 0 && channel instanceof GatheringByteChannel) {
+                    buffer.flip();
+                    gather[0] = buffer;
+                    gather[1] = data;
+                    try {
+                        while (data.hasRemaining()) {
+                            ((GatheringByteChannel) channel).write(gather);
+                        }
+                    } finally {
+                        gather[0] = null;
+                        gather[1] = null;
+                        buffer.clear();
+                    }
+                } else {
+                    drain();
+                    writeFully(data);
+                }
+                return;
+            }
+            if (buffer == null) {
+                buffer = acquire();
+            } else if (len > buffer.remaining()) {
+                drain();
+            }
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            release();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    flush();
+                } finally {
+                    release();
+                    out.close();
+                }
+            }
+        }
+
+        /**
+         * Hands the buffer back to the pool, dropping anything not yet written.
+         */
+        void release() {
+            if (buffer != null) {
+                // All direct buffers go back, there are never more than the pool holds.
+                if (buffer.isDirect()) {
+                    buffer.clear();
+                    POOL.offer(buffer);
+                }
+                buffer = null;
+            }
+            if (heap != null) {
+                count = 0;
+                HEAP_POOL.release(heap);
+                heap = null;
+            }
+        }
+
+        private void drain() throws IOException {
+            if (count > 0) {
+                try {
+                    out.write(heap, 0, count);
+                } finally {
+                    count = 0;
+                }
+            }
+            if (buffer != null && buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    writeFully(buffer);
+                } finally {
+                    buffer.clear();
+                }
+            }
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        private static ByteBuffer acquire() {
+            ByteBuffer pooledBuffer = POOL.poll();
+            if (pooledBuffer != null) {
+                return pooledBuffer;
+            }
+            if (directAllocated.incrementAndGet() <= MAX_POOLED) {
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            directAllocated.decrementAndGet();
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * The value of the <code>Date</code> header, formatted at most once per second and shared by all responses.
+     */
+    static final class HttpDate {
+        private static volatile HttpDate current = new HttpDate(System.currentTimeMillis() / 1000);
+
+        private final long second;
+        private final byte[] value;
+
+        private HttpDate(long second) {
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            this.second = second;
+            this.value = HeaderBuffer.ascii(gmtFrmt.format(new Date(second * 1000)));
+        }
+
+        static byte[] now() {
+            long second = System.currentTimeMillis() / 1000;
+            HttpDate date = current;
+            if (date.second != second) {
+                // Racing threads may both format the same second; either result is correct.
+                date = new HttpDate(second);
+                current = date;
+            }
+            return date.value;
+        }
+    }
+
+    /**
+     * Thrown while reading a request body that is larger than {@link #setMaxBodySize(long)} allows.
+     */
+    public static final class RequestBodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestBodyTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown while reading a request body whose framing is broken, such as an invalid chunk size.
+     * It is the client's fault, answered with 400 Bad Request.
+     */
+    public static final class MalformedRequestBodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedRequestBodyException(String message) {
+            super(message);
+        }
+    }
+
+    public static final class ResponseException extends Exception {
+
+        private final Response.Status status;
+
+        public ResponseException(Response.Status status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public ResponseException(Response.Status status, String message, Exception e) {
+            super(message, e);
+            this.status = status;
+        }
+
+        public Response.Status getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Default strategy for creating and cleaning up temporary files.
+     */
+    private class DefaultTempFileManagerFactory implements TempFileManagerFactory {
+        @Override
+        public TempFileManager create() {
+            return new DefaultTempFileManager(tempFileCleaner);
+        }
+    }
+
+    /**
+     * Runs the keep-alive loop of a connection accepted by the classic listener.
+     */
+    private final class SocketHandler implements ClientHandler, IdleConnection {
+        private final Socket socket;
+        private final InputStream inputStream;
+
+        private SocketHandler(Socket socket, InputStream inputStream) {
+            this.socket = socket;
+            this.inputStream = inputStream;
+        }
+
+        @Override
+        public void run() {
+            OutputStream outputStream = null;
+            try {
+                outputStream = new ConnectionOutputStream(socket.getOutputStream(), socket.getChannel());
+                TempFileManager tempFileManager = tempFileManagerFactory.create();
+                HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, socket);
+                session.idleConnection = this;
+                while (!socket.isClosed()) {
+                    session.execute();
+                }
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own
+                // SocketException to break the "keep alive" loop above.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                connectionBusy(this);
+                safeClose(outputStream);
+                safeClose(inputStream);
+                safeClose(socket);
+                unRegisterConnection(socket);
+            }
+        }
+
+        @Override
+        public void closeIdle() {
+            safeClose(socket);
+        }
+
+        @Override
+        public void reject(Response response) {
+            try {
+                response.send(socket.getOutputStream());
+            } catch (IOException ignored) {
+            } finally {
+                safeClose(inputStream);
+                safeClose(socket);
+                unRegisterConnection(socket);
+            }
+        }
+    }
+
+    /**
+     * A connection accepted by the selector based listener.
+     * <p/>
+     * <p>While waiting for a request the channel is non-blocking and registered with the
+     * selector, which reads into this connection's buffer until the request header is complete.
+     * The channel is then switched to blocking mode and the request is run on the
+     * {@link AsyncRunner}, the session reading the buffered header before the rest of the socket.</p>
+     */
+    private final class SelectorConnection implements ClientHandler, IdleConnection {
+        private final SocketChannel channel;
+        /**
+         * Taken from {@link BufferPool#REQUEST} when a request starts to arrive, and handed back
+         * once the session has read it, so idle connections hold none.  Only the thread currently
+         * owning the connection, the selector's or the runner's, touches it.
+         */
+        private ByteBuffer buffer;
+        private final HeaderEndScanner headerEndScanner = new HeaderEndScanner();
+        private HTTPSession session;
+        private ConnectionOutputStream outputStream;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private SelectorConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void register() {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                releaseBuffer();
+                close();
+            }
+        }
+
+        /**
+         * Reads whatever the client has sent so far.
+         *
+         * @return true if the request header is complete (or fills the whole buffer) and the request can be run.
+         */
+        private boolean readHeader() {
+            if (buffer == null) {
+                buffer = ByteBuffer.wrap(BufferPool.REQUEST.acquire());
+            }
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                releaseBuffer();
+                close();
+                return false;
+            }
+            lastActivity = System.currentTimeMillis();
+            return headerEndScanner.scan(buffer.array(), buffer.position()) > 0 || !buffer.hasRemaining();
+        }
+
+        private void dispatch() {
+            try {
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                releaseBuffer();
+                close();
+                return;
+            }
+            buffer.flip();
+            asyncRunner.exec(this);
+        }
+
+        /**
+         * @return true if the client has been silent for longer than the idle timeout, or the
+         * header timeout once part of a request has arrived.
+         */
+        private boolean isTimedOut(long now) {
+            int timeout = buffer != null && buffer.position() > 0 ? options.getHeaderTimeout() : options.getIdleTimeout();
+            return timeout > 0 && now - lastActivity > timeout;
+        }
+
+        @Override
+        public void run() {
+            boolean keepAlive = false;
+            try {
+                if (session == null) {
+                    outputStream = new ConnectionOutputStream(channel.socket().getOutputStream(), channel);
+                    session = new HTTPSession(tempFileManagerFactory.create(), new BufferedChannelInputStream(),
+                            outputStream, channel.socket());
+                    session.idleConnection = this;
+                }
+                do {
+                    session.execute();
+                } while (channel.isOpen() && session.inputStream.available() > 0);
+                keepAlive = channel.isOpen();
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own
+                // SocketException to end the connection.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                // Only this thread uses the buffers, so only it may hand them back.
+                releaseBuffer();
+                if (outputStream != null) {
+                    outputStream.release();
+                }
+            }
+
+            if (keepAlive) {
+                try {
+                    headerEndScanner.reset();
+                    lastActivity = System.currentTimeMillis();
+                    channel.configureBlocking(false);
+                    pendingRegistrations.add(this);
+                    selector.wakeup();
+                } catch (IOException e) {
+                    close();
+                }
+            } else {
+                close();
+            }
+        }
+
+        @Override
+        public void reject(Response response) {
+            try {
+                response.send(channel.socket().getOutputStream());
+            } catch (IOException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void closeIdle() {
+            close();
+        }
+
+        private void close() {
+            connectionBusy(this);
+            safeClose(channel);
+            unRegisterConnection(channel.socket());
+        }
+
+        /**
+         * Called by the thread owning the connection; a buffer of a connection closed from
+         * elsewhere is left to the garbage collector.
+         */
+        private void releaseBuffer() {
+            if (buffer != null) {
+                BufferPool.REQUEST.release(buffer.array());
+                buffer = null;
+            }
+        }
+
+        /**
+         * Reads the header bytes already collected by the selector, then carries on with the socket.
+         */
+        private final class BufferedChannelInputStream extends InputStream {
+            private final InputStream socketStream;
+
+            private BufferedChannelInputStream() throws IOException {
+                socketStream = channel.socket().getInputStream();
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (buffer != null) {
+                    int c = buffer.get() & 0xff;
+                    releaseIfRead();
+                    return c;
+                }
+                return socketStream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (buffer != null) {
+                    int count = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, count);
+                    releaseIfRead();
+                    return count;
+                }
+                return socketStream.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return buffer != null ? buffer.remaining() : 0;
+            }
+
+            private void releaseIfRead() {
+                if (!buffer.hasRemaining()) {
+                    releaseBuffer();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                SelectorConnection.this.close();
+            }
+        }
+    }
+
+    /**
+     * The body of a request with a <code>Content-Length</code>: ends after that many bytes, so
+     * reading it never consumes the next request on the connection.
+     */
+    public static final class ContentLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        public ContentLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = in.read();
+            if (c >= 0) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(remaining, in.available());
+        }
+
+        /**
+         * Does not close the connection's stream.
+         */
+        @Override
+        public void close() {
+        }
+
+        public long getRemaining() {
+            return remaining;
+        }
+    }
+
+    /**
+     * Request body of a client that sent <code>Expect: 100-continue</code>.  The interim
+     * <code>100 Continue</code> response goes out when the body is first read.
+     */
+    static final class ExpectContinueInputStream extends FilterInputStream {
+        private static final byte[] CONTINUE = HeaderBuffer.ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+        private final OutputStream outputStream;
+        private boolean continued;
+
+        ExpectContinueInputStream(InputStream in, OutputStream outputStream) {
+            super(in);
+            this.outputStream = outputStream;
+        }
+
+        boolean isContinued() {
+            return continued;
+        }
+
+        @Override
+        public int read() throws IOException {
+            sendContinue();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            sendContinue();
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            sendContinue();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void sendContinue() throws IOException {
+            if (!continued) {
+                continued = true;
+                outputStream.write(CONTINUE);
+                outputStream.flush();
+            }
+        }
+    }
+
+    /**
+     * Decodes a request body sent with <code>Transfer-Encoding: chunked</code>.
+     * <p/>
+     * <p>Chunk extensions are ignored, trailer fields are collected and can be read with
+     * {@link #getTrailers()} once the stream is exhausted.  Reading past the size limit fails
+     * with a {@link RequestBodyTooLargeException} before the oversized chunk is consumed, broken
+     * framing with a {@link MalformedRequestBodyException}.</p>
+     */
+    public static final class ChunkedInputStream extends InputStream {
+        private static final int MAX_LINE_LENGTH = 4096;
+
+        private final InputStream in;
+        private final long maxSize;
+        private final byte[] single = new byte[1];
+        private long total;
+        private long chunkRemaining;
+        private boolean eof;
+        private Map<String, String> trailers = Collections.emptyMap();
+
+        public ChunkedInputStream(InputStream in, long maxSize) {
+            this.in = in;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (chunkRemaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of chunked request body");
+            }
+            chunkRemaining -= read;
+            if (chunkRemaining == 0 && readLine().length() != 0) {
+                throw new MalformedRequestBodyException("Chunk not followed by CRLF");
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(chunkRemaining, in.available());
+        }
+
+        /**
+         * Does not close the connection's stream.
+         */
+        @Override
+        public void close() {
+        }
+
+        public boolean isFinished() {
+            return eof;
+        }
+
+        public long getBytesRead() {
+            return total - chunkRemaining;
+        }
+
+        public Map<String, String> getTrailers() {
+            return trailers;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) {
+                return false;
+            }
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+            long chunkSize;
+            try {
+                chunkSize = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new MalformedRequestBodyException("Invalid chunk size: " + size);
+            }
+            if (chunkSize < 0) {
+                throw new MalformedRequestBodyException("Invalid chunk size: " + size);
+            }
+            if (chunkSize == 0) {
+                readTrailers();
+                eof = true;
+                return false;
+            }
+            if (chunkSize > maxSize - total) {
+                throw new RequestBodyTooLargeException("Chunked request body exceeds " + maxSize + " bytes");
+            }
+            total += chunkSize;
+            chunkRemaining = chunkSize;
+            return true;
+        }
+
+        private void readTrailers() throws IOException {
+            String line = readLine();
+            while (line.length() > 0) {
+                int p = line.indexOf(':');
+                if (p > 0) {
+                    if (trailers.isEmpty()) {
+                        trailers = new HashMap<String, String>();
+                    }
+                    trailers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+                }
+                line = readLine();
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Unexpected end of chunked request body");
+                }
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new MalformedRequestBodyException("Chunk header line too long");
+                }
+                line.append((char) c);
+            }
+            int len = line.length();
+            if (len > 0 && line.charAt(len - 1) == '\r') {
+                line.setLength(len - 1);
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for a multipart boundary.
+     * <p/>
+     * <p>The skip table is built once per boundary, after which a search usually moves ahead by
+     * the boundary length per comparison and never backtracks.  Searches work on any range of a
+     * buffer, so a stream can be scanned chunk by chunk as long as the caller keeps the last
+     * <code>length() - 1</code> bytes of a chunk for the next one.</p>
+     */
+    static final class BoundarySearch {
+        private final byte[] pattern;
+        private final int[] skip = new int[256];
+
+        BoundarySearch(byte[] pattern) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Empty boundary");
+            }
+            this.pattern = pattern;
+            int last = pattern.length - 1;
+            Arrays.fill(skip, pattern.length);
+            for (int i = 0; i < last; i++) {
+                skip[pattern[i] & 0xff] = last - i;
+            }
+        }
+
+        int length() {
+            return pattern.length;
+        }
+
+        /**
+         * @return the position of the first match in <code>buf[from, to)</code>, or -1.
+         */
+        int indexOf(byte[] buf, int from, int to) {
+            int last = pattern.length - 1;
+            int i = from;
+            while (i + last < to) {
+                byte b = buf[i + last];
+                if (b == pattern[last]) {
+                    int j = last - 1;
+                    while (j >= 0 && buf[i + j] == pattern[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += skip[b & 0xff];
+            }
+            return -1;
+        }
+
+        /**
+         * Stores the positions of non-overlapping matches in <code>buf[from, to)</code> into
+         * <code>positions</code>, which can be reused across calls.
+         *
+         * @return the number of matches, at most <code>positions.length</code>.
+         */
+        int findAll(byte[] buf, int from, int to, int[] positions) {
+            int count = 0;
+            int i = from;
+            while (count < positions.length && (i = indexOf(buf, i, to)) >= 0) {
+                positions[count++] = i;
+                i += pattern.length;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Reads a multipart/form-data body straight from the request stream, one part at a time.
+     * <p/>
+     * <p>The body is never buffered as a whole: part headers are returned line by line and part
+     * contents are copied to the caller's stream up to the next boundary.  Parts may be delimited
+     * with CRLF or bare LF line endings.</p>
+     */
+    static final class MultipartStream {
+        private static final int BUFFER_SIZE = 16 * 1024;
+
+        private final InputStream in;
+        private long remaining;
+        /**
+         * "\n--" followed by the boundary.  A preceding '\r' is stripped from the part contents.
+         */
+        private final byte[] delimiter;
+        private final BoundarySearch search;
+        private final byte[] buf;
+        private int head;
+        private int tail;
+
+        MultipartStream(InputStream in, long size, byte[] boundary) {
+            this.in = in;
+            this.remaining = size;
+            this.delimiter = new byte[boundary.length + 3];
+            this.delimiter[0] = '\n';
+            this.delimiter[1] = '-';
+            this.delimiter[2] = '-';
+            System.arraycopy(boundary, 0, this.delimiter, 3, boundary.length);
+            this.search = new BoundarySearch(delimiter);
+            this.buf = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+            // Pretend the body starts on a new line, so the first delimiter is found like all others.
+            this.buf[0] = '\n';
+            this.tail = 1;
+        }
+
+        /**
+         * Skips everything up to and including the first delimiter.
+         *
+         * @return false if the body contains no delimiter at all.
+         */
+        boolean skipPreamble() throws IOException {
+            return readBody(null) >= 0;
+        }
+
+        /**
+         * Positions the stream at the headers of the next part.
+         *
+         * @return false after the closing delimiter, or at the end of the body.
+         */
+        boolean nextPart() throws IOException {
+            if (!ensure(2) || (buf[head] == '-' && buf[head + 1] == '-')) {
+                return false;
+            }
+            // Skip transport padding and the line break after the delimiter.
+            return readLine() != null;
+        }
+
+        /**
+         * Reads one line of part headers, without its line terminator.
+         *
+         * @return the line, or null at the end of the body.
+         */
+        String readLine() throws IOException {
+            int scanned = head;
+            while (true) {
+                for (int i = scanned; i < tail; i++) {
+                    if (buf[i] == '\n') {
+                        int end = i > head && buf[i - 1] == '\r' ? i - 1 : i;
+                        String line = new String(buf, head, end - head);
+                        head = i + 1;
+                        return line;
+                    }
+                }
+                scanned = tail - head;
+                if (head == 0 && tail == buf.length) {
+                    throw new IOException("Multipart header line too long");
+                }
+                if (fill() < 0) {
+                    if (head == tail) {
+                        return null;
+                    }
+                    String line = new String(buf, head, tail - head);
+                    head = tail;
+                    return line;
+                }
+                scanned += head;
+            }
+        }
+
+        /**
+         * Copies the current part's contents to <code>out</code> (or discards them if it is null)
+         * and consumes the following delimiter.
+         *
+         * @return the number of bytes copied, or -1 if the body ended before another delimiter.
+         */
+        long readBody(OutputStream out) throws IOException {
+            long copied = 0;
+            while (true) {
+                int match = search.indexOf(buf, head, tail);
+                if (match >= 0) {
+                    int end = match > head && buf[match - 1] == '\r' ? match - 1 : match;
+                    copied += write(out, end);
+                    head = match + delimiter.length;
+                    return copied;
+                }
+                // Hold back what could be the start of a delimiter, including a '\r' before it.
+                int safe = tail - delimiter.length;
+                if (safe > head) {
+                    copied += write(out, safe);
+                }
+                if (fill() < 0) {
+                    copied += write(out, tail);
+                    return -1;
+                }
+            }
+        }
+
+        private int write(OutputStream out, int end) throws IOException {
+            int len = end - head;
+            if (out != null && len > 0) {
+                out.write(buf, head, len);
+            }
+            head = end;
+            return len;
+        }
+
+        private boolean ensure(int count) throws IOException {
+            while (tail - head < count) {
+                if (fill() < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Compacts the buffer and reads more of the body into it.
+         *
+         * @return the number of bytes read, or -1 at the end of the body.
+         */
+        private int fill() throws IOException {
+            if (head > 0) {
+                System.arraycopy(buf, head, buf, 0, tail - head);
+                tail -= head;
+                head = 0;
+            }
+            if (remaining <= 0 || tail == buf.length) {
+                return -1;
+            }
+            int read = in.read(buf, tail, (int) Math.min(buf.length - tail, remaining));
+            if (read <= 0) {
+                remaining = 0;
+                return -1;
+            }
+            remaining -= read;
+            tail += read;
+            return read;
+        }
+    }
+
+    /**
+     * Finds the empty line terminating a request header, as the header trickles in.
+     * <p/>
+     * <p>The scan resumes where the previous call stopped, so every received byte is only
+     * looked at once however the header is fragmented.  Both CRLF and bare LF line endings
+     * are recognised.</p>
+     */
+    static final class HeaderEndScanner {
+        private static final int IN_LINE = 0;
+        private static final int AFTER_CR = 1;
+        private static final int LINE_START = 2;
+        private static final int LINE_START_AFTER_CR = 3;
+
+        private int position;
+        private int state;
+
+        /**
+         * Prepares the scanner for the next request.
+         */
+        void reset() {
+            position = 0;
+            state = IN_LINE;
+        }
+
+        /**
+         * Continues the search through <code>buf[0..len)</code>.
+         *
+         * @return the offset just past the terminating empty line, or 0 if it hasn't arrived yet.
+         */
+        int scan(byte[] buf, int len) {
+            int state = this.state;
+            for (int i = position; i < len; i++) {
+                byte b = buf[i];
+                if (b == '\n') {
+                    if (state >= LINE_START) {
+                        reset();
+                        return i + 1;
+                    }
+                    state = LINE_START;
+                } else if (b == '\r') {
+                    state = state == LINE_START ? LINE_START_AFTER_CR : AFTER_CR;
+                } else {
+                    state = IN_LINE;
+                }
+            }
+            this.position = len;
+            this.state = state;
+            return 0;
+        }
+    }
+
+    /**
+     * Parses a request header straight out of the session's read buffer.
+     * <p/>
+     * <p>The request line and the header lines are only located, as offsets into the buffer;
+     * Strings are created just for the header names and values handed to <code>serve()</code>.
+     * Lines may end in CRLF, LF or CR, and leading and trailing whitespace is ignored, like
+     * the BufferedReader/StringTokenizer based parsing this replaces.  One parser is kept per
+     * connection and reused for every request.</p>
+     */
+    static final class RequestHeaderParser {
+        int methodStart, methodEnd;
+        int uriStart, uriEnd;
+        int protocolStart, protocolEnd;
+        int headerCount;
+        private int[] headerRanges = new int[4 * 16];
+        private char[] chars = new char[128];
+
+        /**
+         * Locates the request line tokens and the header lines in <code>buf[0..len)</code>.
+         * Header lines are only looked at if the request line names a protocol version.
+         *
+         * @return false if the buffer holds no request line at all.
+         */
+        boolean parse(byte[] buf, int len) {
+            headerCount = 0;
+            if (len == 0) {
+                return false;
+            }
+
+            int lineEnd = endOfLine(buf, 0, len);
+            methodStart = skipWhitespace(buf, 0, lineEnd);
+            methodEnd = skipToken(buf, methodStart, lineEnd);
+            uriStart = skipWhitespace(buf, methodEnd, lineEnd);
+            uriEnd = skipToken(buf, uriStart, lineEnd);
+            protocolStart = skipWhitespace(buf, uriEnd, lineEnd);
+            protocolEnd = skipToken(buf, protocolStart, lineEnd);
+
+            if (protocolEnd > protocolStart) {
+                int lineStart = startOfNextLine(buf, lineEnd, len);
+                while (lineStart < len) {
+                    lineEnd = endOfLine(buf, lineStart, len);
+                    int start = skipWhitespace(buf, lineStart, lineEnd);
+                    if (start == lineEnd) {
+                        break;
+                    }
+                    int colon = start;
+                    while (colon < lineEnd && buf[colon] != ':') {
+                        colon++;
+                    }
+                    if (colon < lineEnd) {
+                        addHeader(start, trimEnd(buf, start, colon), skipWhitespace(buf, colon + 1, lineEnd), trimEnd(buf, colon + 1, lineEnd));
+                    }
+                    lineStart = startOfNextLine(buf, lineEnd, len);
+                }
+            }
+            return true;
+        }
 
-            Status(int requestStatus, String description) {
-                this.requestStatus = requestStatus;
-                this.description = description;
+        /**
+         * @return the lowercase name of the i-th header.
+         */
+        String headerName(byte[] buf, int i) {
+            int start = headerRanges[4 * i];
+            int end = headerRanges[4 * i + 1];
+            char[] chars = charsFor(end - start);
+            for (int p = start; p < end; p++) {
+                int b = buf[p] & 0xff;
+                if (b >= 0x80) {
+                    return new String(buf, start, end - start).toLowerCase(Locale.US);
+                }
+                chars[p - start] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
             }
+            return new String(chars, 0, end - start);
+        }
 
-            @Override
-            public int getRequestStatus() {
-                return this.requestStatus;
+        /**
+         * @return the value of the i-th header.
+         */
+        String headerValue(byte[] buf, int i) {
+            int start = headerRanges[4 * i + 2];
+            int end = headerRanges[4 * i + 3];
+            char[] chars = charsFor(end - start);
+            for (int p = start; p < end; p++) {
+                int b = buf[p] & 0xff;
+                if (b >= 0x80) {
+                    return new String(buf, start, end - start);
+                }
+                chars[p - start] = (char) b;
             }
+            return new String(chars, 0, end - start);
+        }
 
-            @Override
-            public String getDescription() {
-                return "" + this.requestStatus + " " + description;
+        private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            if (4 * headerCount == headerRanges.length) {
+                int[] grown = new int[headerRanges.length * 2];
+                System.arraycopy(headerRanges, 0, grown, 0, headerRanges.length);
+                headerRanges = grown;
             }
+            int i = 4 * headerCount++;
+            headerRanges[i] = nameStart;
+            headerRanges[i + 1] = nameEnd;
+            headerRanges[i + 2] = valueStart;
+            headerRanges[i + 3] = Math.max(valueStart, valueEnd);
         }
-    }
 
-    public static final class ResponseException extends Exception {
+        private char[] charsFor(int length) {
+            if (chars.length < length) {
+                chars = new char[length];
+            }
+            return chars;
+        }
 
-        private final Response.Status status;
+        private static int endOfLine(byte[] buf, int pos, int len) {
+            while (pos < len && buf[pos] != '\r' && buf[pos] != '\n') {
+                pos++;
+            }
+            return pos;
+        }
 
-        public ResponseException(Response.Status status, String message) {
-            super(message);
-            this.status = status;
+        private static int startOfNextLine(byte[] buf, int lineEnd, int len) {
+            if (lineEnd < len && buf[lineEnd] == '\r' && lineEnd + 1 < len && buf[lineEnd + 1] == '\n') {
+                return lineEnd + 2;
+            }
+            return lineEnd + 1;
         }
 
-        public ResponseException(Response.Status status, String message, Exception e) {
-            super(message, e);
-            this.status = status;
+        private static int skipWhitespace(byte[] buf, int pos, int end) {
+            while (pos < end && (buf[pos] & 0xff) <= ' ') {
+                pos++;
+            }
+            return pos;
         }
 
-        public Response.Status getStatus() {
-            return status;
+        private static int skipToken(byte[] buf, int pos, int end) {
+            while (pos < end && (buf[pos] & 0xff) > ' ') {
+                pos++;
+            }
+            return pos;
         }
-    }
 
-    /**
-     * Default strategy for creating and cleaning up temporary files.
-     */
-    private class DefaultTempFileManagerFactory implements TempFileManagerFactory {
-        @Override
-        public TempFileManager create() {
-            return new DefaultTempFileManager();
+        private static int trimEnd(byte[] buf, int start, int end) {
+            while (end > start && (buf[end - 1] & 0xff) <= ' ') {
+                end--;
+            }
+            return end;
         }
     }
 
@@ -946,6 +4097,10 @@ public abstract class NanoHTTPD {
 
         Method getMethod();
 
+        /**
+         * @return the request body.  It ends with the message when the request has a Content-Length or
+         * is chunked; anything left unread is skipped before the next request on the connection.
+         */
         InputStream getInputStream();
 
         CookieHandler getCookies();
@@ -955,37 +4110,124 @@ public abstract class NanoHTTPD {
          * @arg files - map to modify
          */
         void parseBody(Map<String, String> files) throws IOException, ResponseException;
+
+        /**
+         * Like {@link #parseBody(Map)}, but the file parts of a multipart/form-data body are written
+         * to the streams the handler supplies instead of to temp files.
+         */
+        void parseBody(Map<String, String> files, MultipartHandler handler) throws IOException, ResponseException;
+
+        /**
+         * Like {@link #parseBody(Map)}, but a PUT body and the file parts of a multipart/form-data body
+         * are put into <code>tempFiles</code> as they are, instead of their paths into <code>files</code>.
+         * A temp file of a memory-backed manager stays in memory unless its name is asked for; read it
+         * with {@link MemoryTempFile#getInputStream()}.
+         */
+        void parseBody(Map<String, String> files, Map<String, TempFile> tempFiles) throws IOException, ResponseException;
+    }
+
+    /**
+     * Supplies the destination of each uploaded file while a multipart/form-data body is parsed.
+     */
+    public interface MultipartHandler {
+        /**
+         * Called when the headers of a file part have been read.  The part's contents are written to
+         * the returned stream, which is closed once the part ends.
+         *
+         * @param name        the form field name
+         * @param filename    the file name sent by the client, may be null
+         * @param contentType the part's content type
+         * @return the stream to write the part to, or null to store it in a temp file as usual
+         */
+        OutputStream openPart(String name, String filename, String contentType) throws IOException;
+
+        /**
+         * Called instead of closing the stream returned by {@link #openPart} when the part could not
+         * be read to its end, because the body was cut short or reading it failed.  What was written
+         * is incomplete and should be discarded.
+         *
+         * @param name the form field name
+         * @param out  the stream the part was written to, to be closed by the handler
+         */
+        void abortPart(String name, OutputStream out);
     }
 
     protected class HTTPSession implements IHTTPSession {
         public static final int BUFSIZE = 8192;
         private final TempFileManager tempFileManager;
-        private final OutputStream outputStream;
-        private PushbackInputStream inputStream;
+        private final PipelinedOutputStream outputStream;
+        /**
+         * The socket channel of the connection, or null for sockets accepted by the classic listener.
+         */
+        private WritableByteChannel outputChannel;
+        private RequestInputStream inputStream;
+        /**
+         * The request body: bounded by the Content-Length, the decoded chunked body, or else the
+         * connection's stream (e.g. for upgraded connections).
+         */
+        private InputStream bodyStream;
+        private boolean chunked;
+        /**
+         * Read buffer for the request header, taken from {@link BufferPool#REQUEST} once a request
+         * starts to arrive and handed back when it has been served.
+         */
+        private byte[] buf;
+        private final RequestHeaderParser headerParser = new RequestHeaderParser();
+        private final HeaderEndScanner headerEndScanner = new HeaderEndScanner();
+        /**
+         * Holds a small request body while its request is served: taken from {@link BufferPool#REQUEST}
+         * if the body fits, else allocated for the request.
+         */
+        private byte[] bodyBuffer;
         private int splitbyte;
         private int rlen;
         private String uri;
         private Method method;
-        private Map<String, String> parms;
-        private Map<String, String> headers;
-        private CookieHandler cookies;
+        /**
+         * Request state below is cleared, not reallocated, at the start of every request.
+         */
+        private final Map<String, String> parms = new HashMap<String, String>();
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final CookieHandler cookies = new CookieHandler();
         private String queryParameterString;
+        private String protocolVersion;
+        private String remoteIp;
+        /**
+         * The connection this session runs on, tracked while it waits for its next request.
+         */
+        private IdleConnection idleConnection;
+        private int requestCount;
+        private Socket socket;
+        private int readTimeout = -1;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
-            this.outputStream = outputStream;
+            this.outputStream = new PipelinedOutputStream(outputStream);
+            this.inputStream = new RequestInputStream(new FlushingInputStream(inputStream, this.outputStream));
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
-            this.outputStream = outputStream;
-            String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
+            this.outputStream = new PipelinedOutputStream(outputStream);
+            this.inputStream = new RequestInputStream(new FlushingInputStream(inputStream, this.outputStream));
+            remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
+            putRemoteAddress();
+        }
 
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+        public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, Socket socket) {
+            this(tempFileManager, inputStream, outputStream, socket.getInetAddress());
+            this.outputChannel = socket.getChannel();
+            this.socket = socket;
+        }
+
+        /**
+         * Switches the read timeout of the socket, if there is one, for the next phase of a request.
+         */
+        private void setReadTimeout(int timeout) throws SocketException {
+            if (socket != null && timeout != readTimeout) {
+                socket.setSoTimeout(timeout);
+                readTimeout = timeout;
+            }
         }
 
         @Override
@@ -995,13 +4237,15 @@ public abstract class NanoHTTPD {
                 // The full header should fit in here.
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
                 splitbyte = 0;
                 rlen = 0;
+                headerEndScanner.reset();
                 {
                     int read = -1;
                     try {
-                        read = inputStream.read(buf, 0, BUFSIZE);
+                        // Wait for the first byte without holding a buffer.
+                        setReadTimeout(options.getIdleTimeout());
+                        read = inputStream.read();
                     } catch (Exception e) {
                         safeClose(inputStream);
                         safeClose(outputStream);
@@ -1013,374 +4257,567 @@ public abstract class NanoHTTPD {
                         safeClose(outputStream);
                         throw new SocketException("NanoHttpd Shutdown");
                     }
+                    buf = BufferPool.REQUEST.acquire();
+                    buf[0] = (byte) read;
+                    read = 1;
                     while (read > 0) {
                         rlen += read;
-                        splitbyte = findHeaderEnd(buf, rlen);
+                        splitbyte = headerEndScanner.scan(buf, rlen);
                         if (splitbyte > 0)
                             break;
-                        read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                        setReadTimeout(options.getHeaderTimeout());
+                        try {
+                            read = inputStream.read(buf, rlen, BUFSIZE - rlen);
+                        } catch (SocketTimeoutException e) {
+                            // The client took too long to send its header.
+                            safeClose(inputStream);
+                            safeClose(outputStream);
+                            throw new SocketException("NanoHttpd Shutdown");
+                        }
                     }
                 }
+                setReadTimeout(options.getBodyTimeout());
 
                 if (splitbyte < rlen) {
                     inputStream.unread(buf, splitbyte, rlen - splitbyte);
                 }
-
-                parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
+                if (idleConnection != null) {
+                    connectionBusy(idleConnection);
                 }
 
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
+                parms.clear();
+                headers.clear();
+                putRemoteAddress();
+                uri = null;
+                queryParameterString = null;
+                protocolVersion = null;
 
                 // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
-
-                method = Method.lookup(pre.get("method"));
+                decodeHeader(parms, headers);
                 if (method == null) {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
                 }
 
-                uri = pre.get("uri");
+                String transferEncoding = headers.get("transfer-encoding");
+                String contentLength = headers.get("content-length");
+                chunked = transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked");
+                if (chunked) {
+                    bodyStream = new ChunkedInputStream(inputStream, maxBodySize);
+                } else if (contentLength != null) {
+                    long length;
+                    try {
+                        length = Long.parseLong(contentLength.trim());
+                    } catch (NumberFormatException e) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
+                    }
+                    if (length < 0) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
+                    }
+                    if (length > maxBodySize) {
+                        throw new RequestBodyTooLargeException("Request body of " + length + " bytes exceeds " + maxBodySize + " bytes");
+                    }
+                    bodyStream = new ContentLengthInputStream(inputStream, length);
+                } else {
+                    bodyStream = inputStream;
+                }
+                ExpectContinueInputStream expectContinue = null;
+                if (bodyStream != inputStream && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                    expectContinue = new ExpectContinueInputStream(bodyStream, outputStream);
+                    bodyStream = expectContinue;
+                }
 
-                cookies = new CookieHandler(headers);
+                cookies.reset(headers);
 
                 // Ok, now do the serve()
-                Response r = serve(this);
+                Response r = checkRequest(this);
+                boolean bodyUnread = r != null;
+                if (r == null) {
+                    r = serve(this);
+                    bodyUnread = expectContinue != null && !expectContinue.isContinued();
+                }
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+                } else if (bodyUnread && bodyStream != inputStream) {
+                    // The body was never asked for, so it can't be skipped: end the connection instead.
+                    r.addHeader("Connection", "close");
+                    r.setRequestMethod(method);
+                    r.send(outputStream);
+                    safeClose(outputStream);
                 } else {
                     cookies.unloadQueue(r);
+                    requestCount++;
+                    boolean keepAlive = isKeepAliveRequested() && (maxKeepAliveRequests <= 0 || requestCount < maxKeepAliveRequests);
+                    int keepAliveTimeout = options.getIdleTimeout();
+                    r.setKeepAlive(keepAlive, keepAliveTimeout > 0 ? Math.max(1, keepAliveTimeout / 1000) : 0,
+                            maxKeepAliveRequests > 0 ? maxKeepAliveRequests - requestCount : -1);
                     r.setRequestMethod(method);
-                    r.send(outputStream);
+                    r.setOutputChannel(outputChannel);
+                    // Compressed bodies are chunked, which HTTP/1.0 clients don't understand.
+                    if (compressionEnabled && "HTTP/1.1".equalsIgnoreCase(protocolVersion)) {
+                        r.setCompression(headers.get("accept-encoding"), compressionLevel, compressionMinSize);
+                    }
+                    // More pipelined requests at hand: their responses go out with this one.
+                    outputStream.setDeferFlush(r.isBatchable() && inputStream.available() > 0);
+                    try {
+                        r.send(outputStream);
+                    } finally {
+                        outputStream.setDeferFlush(false);
+                    }
+                    if (r.closesConnection()) {
+                        // Whatever is left of the body is never read.
+                        safeClose(outputStream);
+                    } else if (drainBody() && idleConnection != null && inputStream.available() == 0) {
+                        // With pipelined requests still buffered the connection isn't idle, and
+                        // mustn't be evicted while they are served.
+                        connectionIdle(idleConnection);
+                    }
                 }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
             } catch (SocketTimeoutException ste) {
             	throw ste;
+            } catch (RequestBodyTooLargeException e) {
+                Response r = new Response(Response.Status.REQUEST_ENTITY_TOO_LARGE, MIME_PLAINTEXT, e.getMessage());
+                r.addHeader("Connection", "close");
+                r.send(outputStream);
+                safeClose(outputStream);
+            } catch (MalformedRequestBodyException e) {
+                Response r = new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "BAD REQUEST: " + e.getMessage());
+                r.addHeader("Connection", "close");
+                r.send(outputStream);
+                safeClose(outputStream);
             } catch (IOException ioe) {
                 Response r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+                r.addHeader("Connection", "close");
                 r.send(outputStream);
                 safeClose(outputStream);
             } catch (ResponseException re) {
                 Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+                r.addHeader("Connection", "close");
                 r.send(outputStream);
                 safeClose(outputStream);
             } finally {
                 tempFileManager.clear();
+                if (buf != null) {
+                    BufferPool.REQUEST.release(buf);
+                    buf = null;
+                }
+                releaseBodyBuffer();
+            }
+        }
+
+        /**
+         * HTTP/1.1 connections stay open unless the client sends <code>Connection: close</code>;
+         * HTTP/1.0 ones only if it sends <code>Connection: keep-alive</code>.
+         */
+        private boolean isKeepAliveRequested() {
+            String connection = headers.get("connection");
+            if (connection != null) {
+                connection = connection.toLowerCase(Locale.US);
+                if (connection.contains("close")) {
+                    return false;
+                }
+                if (connection.contains("keep-alive")) {
+                    return true;
+                }
+            }
+            return "HTTP/1.1".equalsIgnoreCase(protocolVersion);
+        }
+
+        private void putRemoteAddress() {
+            if (remoteIp != null) {
+                headers.put("remote-addr", remoteIp);
+                headers.put("http-client-ip", remoteIp);
+            }
+        }
+
+        /**
+         * Skips whatever the handler left unread of the request body, so the next request on the
+         * connection starts at its request line.
+         *
+         * @return false if the body couldn't be skipped and the connection has been closed.
+         */
+        private boolean drainBody() {
+            if (bodyStream != inputStream) {
+                try {
+                    while (bodyStream.read(buf, 0, buf.length) > 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // The rest of the body is unusable (e.g. too large), the connection has to go.
+                    safeClose(outputStream);
+                    return false;
+                }
             }
+            return true;
         }
 
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
-            RandomAccessFile randomAccessFile = null;
-            BufferedReader in = null;
-            try {
+            parseBody(files, null, null);
+        }
+
+        @Override
+        public void parseBody(Map<String, String> files, MultipartHandler handler) throws IOException, ResponseException {
+            parseBody(files, null, handler);
+        }
 
-                randomAccessFile = getTmpBucket();
+        @Override
+        public void parseBody(Map<String, String> files, Map<String, TempFile> tempFiles) throws IOException, ResponseException {
+            parseBody(files, tempFiles, null);
+        }
 
-                long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
-                } else if (splitbyte < rlen) {
-                    size = rlen - splitbyte;
-                } else {
-                    size = 0;
+        /**
+         * @param tempFiles where to put the temp files of the body, or null to put their paths into <code>files</code>
+         */
+        private void parseBody(Map<String, String> files, Map<String, TempFile> tempFiles, MultipartHandler handler) throws IOException, ResponseException {
+            long size = chunked ? Long.MAX_VALUE : getBodySize();
+
+            // If the method is POST, there may be parameters
+            // in data section, too, read it:
+            String contentType = "";
+            String contentTypeHeader = headers.get("content-type");
+            StringTokenizer st = null;
+            if (Method.POST.equals(method) && contentTypeHeader != null) {
+                st = new StringTokenizer(contentTypeHeader, ",; ");
+                if (st.hasMoreTokens()) {
+                    contentType = st.nextToken();
                 }
+            }
 
-                // Now read all the body and write it to f
-                byte[] buf = new byte[512];
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, (int)Math.min(size, 512));
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
-                    }
+            if ("multipart/form-data".equalsIgnoreCase(contentType)) {
+                // Handle multipart/form-data, straight from the socket
+                if (!st.hasMoreTokens()) {
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
                 }
 
-                // Get the raw body as a byte []
-                ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
+                String boundaryStartString = "boundary=";
+                int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
+                String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
+                if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
 
-                // Create a BufferedReader for easily reading it as string.
-                InputStream bin = new FileInputStream(randomAccessFile.getFD());
-                in = new BufferedReader(new InputStreamReader(bin));
+                decodeMultipartData(boundary, size, parms, files, tempFiles, handler);
+                return;
+            }
 
-                // If the method is POST, there may be parameters
-                // in data section, too, read it:
-                if (Method.POST.equals(method)) {
-                    String contentType = "";
-                    String contentTypeHeader = headers.get("content-type");
+            if (Method.PUT.equals(method)) {
+                saveBodyToTmpFile(size, "content", files, tempFiles);
+                return;
+            }
 
-                    StringTokenizer st = null;
-                    if (contentTypeHeader != null) {
-                        st = new StringTokenizer(contentTypeHeader, ",; ");
-                        if (st.hasMoreTokens()) {
-                            contentType = st.nextToken();
+            ByteBuffer fbuf;
+            if (!chunked && headers.containsKey("content-length") && size <= maxInMemoryBodySize) {
+                fbuf = readBodyIntoMemory((int) size);
+            } else {
+                // Spool the body, then read it back
+                TempFile bucket = createTempFile();
+                OutputStream out = openTempFile(bucket);
+                try {
+                    while (size > 0) {
+                        int read = bodyStream.read(buf, 0, (int) Math.min(size, buf.length));
+                        if (read <= 0) {
+                            break;
                         }
+                        out.write(buf, 0, read);
+                        size -= read;
                     }
+                } finally {
+                    safeClose(out);
+                }
+                fbuf = readTmpBucket(bucket);
+            }
 
-                    if ("multipart/form-data".equalsIgnoreCase(contentType)) {
-                        // Handle multipart/form-data
-                        if (!st.hasMoreTokens()) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                        }
-
-                        String boundaryStartString = "boundary=";
-                        int boundaryContentStart = contentTypeHeader.indexOf(boundaryStartString) + boundaryStartString.length();
-                        String boundary = contentTypeHeader.substring(boundaryContentStart, contentTypeHeader.length());
-                        if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                            boundary = boundary.substring(1, boundary.length() - 1);
-                        }
-
-                        decodeMultipartData(boundary, fbuf, in, parms, files);
-                    } else {
-                        String postLine = "";
-                        StringBuilder postLineBuffer = new StringBuilder();
-                        char pbuf[] = new char[512];
-                        int read = in.read(pbuf);
-                        while (read >= 0 && !postLine.endsWith("\r\n")) {
-                            postLine = String.valueOf(pbuf, 0, read);
-                            postLineBuffer.append(postLine);
-                            read = in.read(pbuf);
-                        }
-                        postLine = postLineBuffer.toString().trim();
-                        // Handle application/x-www-form-urlencoded
-                        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
-                        	decodeParms(postLine, parms);
-                        } else if (postLine.length() != 0) {
-                        	// Special case for raw POST data => create a special files entry "postData" with raw content data
-                        	files.put("postData", postLine);
-                        }
-                    }
-                } else if (Method.PUT.equals(method)) {
-                    files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
+            if (Method.POST.equals(method)) {
+                String postLine = decodeBody(fbuf).trim();
+                // Handle application/x-www-form-urlencoded
+                if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
+                    decodeParms(postLine, parms);
+                } else if (postLine.length() != 0) {
+                    // Special case for raw POST data => create a special files entry "postData" with raw content data
+                    files.put("postData", postLine);
                 }
-            } finally {
-                safeClose(randomAccessFile);
-                safeClose(in);
             }
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Reads a body of at most <code>size</code> bytes into the session's body buffer.
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-            throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
+        private ByteBuffer readBodyIntoMemory(int size) throws IOException {
+            if (bodyBuffer != null && bodyBuffer.length < size) {
+                releaseBodyBuffer();
+            }
+            if (bodyBuffer == null) {
+                bodyBuffer = size <= BUFSIZE ? BufferPool.REQUEST.acquire() : new byte[size];
+            }
+            int len = 0;
+            while (len < size) {
+                int read = bodyStream.read(bodyBuffer, len, size - len);
+                if (read <= 0) {
+                    break;
                 }
+                len += read;
+            }
+            return ByteBuffer.wrap(bodyBuffer, 0, len);
+        }
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+        private void releaseBodyBuffer() {
+            if (bodyBuffer != null) {
+                // Only the pooled buffers are exactly BUFSIZE long.
+                if (bodyBuffer.length == BUFSIZE) {
+                    BufferPool.REQUEST.release(bodyBuffer);
                 }
+                bodyBuffer = null;
+            }
+        }
 
-                pre.put("method", st.nextToken());
+        private String decodeBody(ByteBuffer fbuf) {
+            if (fbuf.hasArray()) {
+                return new String(fbuf.array(), fbuf.arrayOffset() + fbuf.position(), fbuf.remaining());
+            }
+            byte[] bytes = new byte[fbuf.remaining()];
+            fbuf.duplicate().get(bytes);
+            return new String(bytes);
+        }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-                }
+        private long getBodySize() {
+            if (headers.containsKey("content-length")) {
+                return Long.parseLong(headers.get("content-length").trim());
+            } else if (splitbyte < rlen && (method == Method.PUT || method == Method.POST)) {
+                // Without a Content-Length only methods that carry a body claim the bytes that
+                // came with the header; for the others, those are the next pipelined request.
+                return rlen - splitbyte;
+            }
+            return 0;
+        }
 
-                String uri = st.nextToken();
+        /**
+         * Decodes the sent headers and loads the data into Key/value pairs
+         */
+        private void decodeHeader(Map<String, String> parms, Map<String, String> headers) throws ResponseException {
+            RequestHeaderParser parser = headerParser;
+            method = null;
+            if (!parser.parse(buf, rlen)) {
+                return;
+            }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
+            if (parser.methodEnd == parser.methodStart) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
 
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
-                    }
-                }
+            if (parser.uriEnd == parser.uriStart) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+            method = Method.lookup(buf, parser.methodStart, parser.methodEnd);
+            String uri = new String(buf, parser.uriStart, parser.uriEnd - parser.uriStart);
+            if (parser.protocolEnd > parser.protocolStart) {
+                protocolVersion = new String(buf, parser.protocolStart, parser.protocolEnd - parser.protocolStart);
+            }
+
+            // Decode parameters from the URI
+            int qmi = uri.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(uri.substring(qmi + 1), parms);
+                uri = decodePercent(uri.substring(0, qmi));
+            } else {
+                uri = decodePercent(uri);
             }
+
+            // Header names are forced lowercase since they are
+            // case insensitive and vary by client.
+            for (int i = 0; i < parser.headerCount; i++) {
+                headers.put(parser.headerName(buf, i), parser.headerValue(buf, i));
+            }
+
+            this.uri = uri;
         }
 
         /**
-         * Decodes the Multipart Body data and put it into Key/Value pairs.
+         * Decodes the Multipart Body data and put it into Key/Value pairs.  File parts are written
+         * to their temp file as they are read from the socket.
          */
-        private void decodeMultipartData(String boundary, ByteBuffer fbuf, BufferedReader in, Map<String, String> parms,
-                                         Map<String, String> files) throws ResponseException {
+        private void decodeMultipartData(String boundary, long size, Map<String, String> parms, Map<String, String> files,
+                                         Map<String, TempFile> tempFiles, MultipartHandler handler) throws ResponseException {
             try {
-                int[] bpositions = getBoundaryPositions(fbuf, boundary.getBytes());
-                int boundarycount = 1;
-                String mpline = in.readLine();
-                while (mpline != null) {
-                    if (!mpline.contains(boundary)) {
-                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but next chunk does not start with boundary. Usage: GET /example/file.html");
-                    }
-                    boundarycount++;
+                MultipartStream multipart = new MultipartStream(bodyStream, size, boundary.getBytes());
+                if (!multipart.skipPreamble()) {
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but next chunk does not start with boundary. Usage: GET /example/file.html");
+                }
+                while (multipart.nextPart()) {
                     Map<String, String> item = new HashMap<String, String>();
-                    mpline = in.readLine();
+                    String mpline = multipart.readLine();
                     while (mpline != null && mpline.trim().length() > 0) {
                         int p = mpline.indexOf(':');
                         if (p != -1) {
                             item.put(mpline.substring(0, p).trim().toLowerCase(Locale.US), mpline.substring(p + 1).trim());
                         }
-                        mpline = in.readLine();
+                        mpline = multipart.readLine();
+                    }
+                    if (mpline == null) {
+                        throw truncatedMultipartBody();
+                    }
+                    String contentDisposition = item.get("content-disposition");
+                    if (contentDisposition == null) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but no content-disposition info found. Usage: GET /example/file.html");
+                    }
+                    StringTokenizer st = new StringTokenizer(contentDisposition, ";");
+                    Map<String, String> disposition = new HashMap<String, String>();
+                    while (st.hasMoreTokens()) {
+                        String token = st.nextToken().trim();
+                        int p = token.indexOf('=');
+                        if (p != -1) {
+                            disposition.put(token.substring(0, p).trim().toLowerCase(Locale.US), unquote(token.substring(p + 1).trim()));
+                        }
                     }
-                    if (mpline != null) {
-                        String contentDisposition = item.get("content-disposition");
-                        if (contentDisposition == null) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but no content-disposition info found. Usage: GET /example/file.html");
+                    String pname = disposition.get("name");
+                    if (pname == null) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but no part name found. Usage: GET /example/file.html");
+                    }
+
+                    String value;
+                    if (item.get("content-type") == null) {
+                        ByteArrayOutputStream field = new ByteArrayOutputStream();
+                        if (multipart.readBody(field) < 0) {
+                            throw truncatedMultipartBody();
                         }
-                        StringTokenizer st = new StringTokenizer(contentDisposition, ";");
-                        Map<String, String> disposition = new HashMap<String, String>();
-                        while (st.hasMoreTokens()) {
-                            String token = st.nextToken().trim();
-                            int p = token.indexOf('=');
-                            if (p != -1) {
-                                disposition.put(token.substring(0, p).trim().toLowerCase(Locale.US), token.substring(p + 1).trim());
+                        value = field.toString();
+                    } else {
+                        value = disposition.get("filename");
+                        OutputStream sink = handler != null ? handler.openPart(pname, value, item.get("content-type")) : null;
+                        if (sink != null) {
+                            long written;
+                            try {
+                                written = multipart.readBody(sink);
+                            } catch (IOException e) {
+                                handler.abortPart(pname, sink);
+                                throw e;
                             }
-                        }
-                        String pname = disposition.get("name");
-                        pname = pname.substring(1, pname.length() - 1);
-
-                        String value = "";
-                        if (item.get("content-type") == null) {
-                            while (mpline != null && !mpline.contains(boundary)) {
-                                mpline = in.readLine();
-                                if (mpline != null) {
-                                    int d = mpline.indexOf(boundary);
-                                    if (d == -1) {
-                                        value += mpline;
-                                    } else {
-                                        value += mpline.substring(0, d - 2);
-                                    }
-                                }
+                            if (written < 0) {
+                                handler.abortPart(pname, sink);
+                                throw truncatedMultipartBody();
                             }
+                            sink.close();
                         } else {
-                            if (boundarycount > bpositions.length) {
-                                throw new ResponseException(Response.Status.INTERNAL_ERROR, "Error processing request");
+                            TempFile tempFile = createTempFile();
+                            OutputStream out = openTempFile(tempFile);
+                            long written;
+                            try {
+                                written = multipart.readBody(out);
+                            } finally {
+                                safeClose(out);
                             }
-                            int offset = stripMultipartHeaders(fbuf, bpositions[boundarycount - 2]);
-                            String path = saveTmpFile(fbuf, offset, bpositions[boundarycount - 1] - offset - 4);
-                            files.put(pname, path);
-                            value = disposition.get("filename");
-                            value = value.substring(1, value.length() - 1);
-                            do {
-                                mpline = in.readLine();
-                            } while (mpline != null && !mpline.contains(boundary));
+                            if (written < 0) {
+                                deleteTempFile(tempFile);
+                                throw truncatedMultipartBody();
+                            }
+                            putTempFile(pname, tempFile, written, files, tempFiles);
+                        }
+                        if (value == null) {
+                            value = "";
                         }
-                        parms.put(pname, value);
                     }
+                    // Fields are available to the parms map as soon as their part has been read.
+                    parms.put(pname, value);
                 }
+            } catch (RequestBodyTooLargeException e) {
+                throw new ResponseException(Response.Status.REQUEST_ENTITY_TOO_LARGE, e.getMessage(), e);
+            } catch (MalformedRequestBodyException e) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: " + e.getMessage(), e);
             } catch (IOException ioe) {
                 throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
             }
         }
 
-        /**
-         * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
-         */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
-            while (splitbyte + 3 < rlen) {
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
-                }
-                splitbyte++;
+        private ResponseException truncatedMultipartBody() {
+            return new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but the body ends before the closing boundary.");
+        }
+
+        private void deleteTempFile(TempFile tempFile) {
+            try {
+                tempFile.delete();
+            } catch (Exception ignored) {
             }
-            return 0;
+        }
+
+        private String unquote(String value) {
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
         }
 
         /**
-         * Find the byte positions where multipart boundaries start.
+         * Writes up to <code>size</code> bytes of the body straight into a temp file and puts it
+         * under <code>name</code>.
          */
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            int matchcount = 0;
-            int matchbyte = -1;
-            List<Integer> matchbytes = new ArrayList<Integer>();
-            for (int i = 0; i < b.limit(); i++) {
-                if (b.get(i) == boundary[matchcount]) {
-                    if (matchcount == 0)
-                        matchbyte = i;
-                    matchcount++;
-                    if (matchcount == boundary.length) {
-                        matchbytes.add(matchbyte);
-                        matchcount = 0;
-                        matchbyte = -1;
+        private void saveBodyToTmpFile(long size, String name, Map<String, String> files, Map<String, TempFile> tempFiles) throws IOException {
+            TempFile tempFile = createTempFile();
+            OutputStream out = openTempFile(tempFile);
+            long written = 0;
+            try {
+                // The header has been decoded, so its buffer is free for copying.
+                while (size > 0) {
+                    int read = bodyStream.read(buf, 0, (int) Math.min(size, buf.length));
+                    if (read <= 0) {
+                        break;
                     }
-                } else {
-                    i -= matchcount;
-                    matchcount = 0;
-                    matchbyte = -1;
+                    out.write(buf, 0, read);
+                    written += read;
+                    size -= read;
                 }
+            } finally {
+                safeClose(out);
             }
-            int[] ret = new int[matchbytes.size()];
-            for (int i = 0; i < ret.length; i++) {
-                ret[i] = matchbytes.get(i);
+            putTempFile(name, tempFile, written, files, tempFiles);
+        }
+
+        /**
+         * Puts the temp file into <code>tempFiles</code>, or else its path into <code>files</code>
+         * (an empty string if nothing was written).  Only the path moves a memory-backed temp file to disk.
+         */
+        private void putTempFile(String name, TempFile tempFile, long written, Map<String, String> files, Map<String, TempFile> tempFiles) {
+            if (tempFiles != null) {
+                tempFiles.put(name, tempFile);
+            } else {
+                files.put(name, written != 0 ? tempFile.getName() : "");
             }
-            return ret;
         }
 
         /**
-         * Retrieves the content of a sent file and saves it to a temporary file. The full path to the saved file is returned.
+         * Maps a spooled body, or copies it out of memory if the temp file never reached the disk.
          */
-        private String saveTmpFile(ByteBuffer b, int offset, int len) {
-            String path = "";
-            if (len > 0) {
-                FileOutputStream fileOutputStream = null;
-                try {
-                    TempFile tempFile = tempFileManager.createTempFile();
-                    ByteBuffer src = b.duplicate();
-                    fileOutputStream = new FileOutputStream(tempFile.getName());
-                    FileChannel dest = fileOutputStream.getChannel();
-                    src.position(offset).limit(offset + len);
-                    dest.write(src.slice());
-                    path = tempFile.getName();
-                } catch (Exception e) { // Catch exception if any
-                    throw new Error(e); // we won't recover, so throw an error
-                } finally {
-                    safeClose(fileOutputStream);
-                }
+        private ByteBuffer readTmpBucket(TempFile bucket) throws IOException {
+            if (bucket instanceof MemoryTempFile && ((MemoryTempFile) bucket).isInMemory()) {
+                MemoryTempFile memoryBucket = (MemoryTempFile) bucket;
+                byte[] body = new byte[(int) memoryBucket.length()];
+                new DataInputStream(memoryBucket.getInputStream()).readFully(body);
+                return ByteBuffer.wrap(body);
+            }
+            RandomAccessFile randomAccessFile = new RandomAccessFile(bucket.getName(), "r");
+            try {
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            } finally {
+                safeClose(randomAccessFile);
             }
-            return path;
         }
 
-        private RandomAccessFile getTmpBucket() {
+        private TempFile createTempFile() {
             try {
-                TempFile tempFile = tempFileManager.createTempFile();
-                return new RandomAccessFile(tempFile.getName(), "rw");
+                return tempFileManager.createTempFile();
             } catch (Exception e) {
-            	throw new Error(e); // we won't recover, so throw an error
+                throw new Error(e); // we won't recover, so throw an error
             }
         }
 
-        /**
-         * It returns the offset separating multipart file headers from the file's data.
-         */
-        private int stripMultipartHeaders(ByteBuffer b, int offset) {
-            int i;
-            for (i = offset; i < b.limit(); i++) {
-                if (b.get(i) == '\r' && b.get(++i) == '\n' && b.get(++i) == '\r' && b.get(++i) == '\n') {
-                    break;
-                }
+        private OutputStream openTempFile(TempFile tempFile) {
+            try {
+                return tempFile.open();
+            } catch (Exception e) {
+                throw new Error(e); // we won't recover, so throw an error
             }
-            return i + 1;
         }
 
         /**
@@ -1433,7 +4870,7 @@ public abstract class NanoHTTPD {
 
         @Override
         public final InputStream getInputStream() {
-            return inputStream;
+            return bodyStream;
         }
 
         @Override
@@ -1504,7 +4941,19 @@ public abstract class NanoHTTPD {
         private HashMap<String, String> cookies = new HashMap<String, String>();
         private ArrayList<Cookie> queue = new ArrayList<Cookie>();
 
+        CookieHandler() {
+        }
+
         public CookieHandler(Map<String, String> httpHeaders) {
+            reset(httpHeaders);
+        }
+
+        /**
+         * Forgets the cookies of the previous request on the connection and reads those of the next one.
+         */
+        void reset(Map<String, String> httpHeaders) {
+            cookies.clear();
+            queue.clear();
             String raw = httpHeaders.get("cookie");
             if (raw != null) {
                 String[] tokens = raw.split(";");
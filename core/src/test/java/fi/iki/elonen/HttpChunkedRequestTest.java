@@ -0,0 +1,114 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class HttpChunkedRequestTest extends HttpServerTest {
+
+    @Test
+    public void testChunkedRawPostData() throws Exception {
+        invokeServer("POST " + URI + " HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5\r\nHello\r\n" +
+                "7;ext=1\r\n, world\r\n" +
+                "0\r\n\r\n");
+
+        assertEquals("Hello, world", testServer.files.get("postData"));
+    }
+
+    @Test
+    public void testChunkedMultipartPost() throws Exception {
+        String divider = UUID.randomUUID().toString();
+        String content = "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"caption\"\r\n" +
+                "\r\n" +
+                "Summer vacation\r\n" +
+                "--" + divider + "--\r\n";
+        String chunked = Integer.toHexString(10) + "\r\n" + content.substring(0, 10) + "\r\n" +
+                Integer.toHexString(content.length() - 10) + "\r\n" + content.substring(10) + "\r\n" +
+                "0\r\n\r\n";
+        invokeServer("POST " + URI + " HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + divider + "\r\n" +
+                "Transfer-Encoding: chunked\r\n\r\n" + chunked);
+
+        assertEquals("Summer vacation", testServer.parms.get("caption"));
+    }
+
+    @Test
+    public void testDefaultServeClosesConnectionAfterOversizedBody() throws Exception {
+        NanoHTTPD server = new NanoHTTPD(8192) {
+        };
+        server.setMaxBodySize(4);
+        NanoHTTPD.TempFileManager tempFileManager = new NanoHTTPD.DefaultTempFileManager();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        server.new HTTPSession(tempFileManager, new ByteArrayInputStream(("POST " + URI + " HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "5\r\nHello\r\n0\r\n\r\n").getBytes()), outputStream).execute();
+        tempFileManager.clear();
+
+        String response = outputStream.toString();
+        assertTrue(response.startsWith("HTTP/1.1 413 Request Entity Too Large"));
+        assertTrue(response.contains("Connection: close"));
+        assertFalse(response.contains("Connection: keep-alive"));
+    }
+
+    @Test
+    public void testMalformedChunkIsBadRequest() throws Exception {
+        NanoHTTPD server = new NanoHTTPD(8192) {
+        };
+        NanoHTTPD.TempFileManager tempFileManager = new NanoHTTPD.DefaultTempFileManager();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        server.new HTTPSession(tempFileManager, new ByteArrayInputStream(("POST " + URI + " HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "zz\r\nHello\r\n0\r\n\r\n").getBytes()), outputStream).execute();
+        tempFileManager.clear();
+
+        String response = outputStream.toString();
+        assertTrue(response.startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(response.contains("Connection: close"));
+    }
+
+    @Test
+    public void testDecoderReadsTrailersAndLeavesFollowingBytes() throws Exception {
+        InputStream raw = new ByteArrayInputStream("3\r\nabc\r\n0\r\nChecksum: 42\r\n\r\nGET /next".getBytes());
+        NanoHTTPD.ChunkedInputStream in = new NanoHTTPD.ChunkedInputStream(raw, 100);
+
+        assertEquals("abc", read(in));
+        assertTrue(in.isFinished());
+        assertEquals("42", in.getTrailers().get("checksum"));
+        assertEquals("GET /next", read(raw));
+    }
+
+    @Test
+    public void testDecoderEnforcesSizeLimit() throws Exception {
+        InputStream raw = new ByteArrayInputStream("4\r\nabcd\r\n4\r\nefgh\r\n0\r\n\r\n".getBytes());
+        NanoHTTPD.ChunkedInputStream in = new NanoHTTPD.ChunkedInputStream(raw, 6);
+        try {
+            read(in);
+            fail("Expected the size limit to be enforced");
+        } catch (NanoHTTPD.RequestBodyTooLargeException expected) {
+            assertEquals(4, in.getBytesRead());
+        }
+    }
+
+    @Test(expected = NanoHTTPD.MalformedRequestBodyException.class)
+    public void testDecoderRejectsInvalidChunkSize() throws Exception {
+        read(new NanoHTTPD.ChunkedInputStream(new ByteArrayInputStream("zz\r\nabc\r\n".getBytes()), 100));
+    }
+
+    private String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[3];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toString();
+    }
+}
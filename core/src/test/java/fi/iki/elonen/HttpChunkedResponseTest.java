@@ -19,7 +19,7 @@ public class HttpChunkedResponseTest extends HttpServerTest {
                 "HTTP/1.1 200 OK",
                 "Content-Type: what/ever",
                 "Date: .*",
-                "Connection: keep-alive",
+                "Connection: close",
                 "Transfer-Encoding: chunked",
                 "",
                 "4",
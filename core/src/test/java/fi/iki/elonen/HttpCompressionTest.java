@@ -0,0 +1,180 @@
+package fi.iki.elonen;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static fi.iki.elonen.NanoHTTPD.Response.Status.OK;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class HttpCompressionTest extends HttpServerTest {
+    private static final String BODY;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("line ").append(i).append(" of a compressible body\n");
+        }
+        BODY = sb.toString();
+    }
+
+    @Before
+    public void enableCompression() {
+        testServer.setCompressionEnabled(true);
+    }
+
+    @Test
+    public void testNegotiateEncoding() {
+        assertNull(NanoHTTPD.Response.negotiateEncoding(null));
+        assertNull(NanoHTTPD.Response.negotiateEncoding("identity"));
+        assertNull(NanoHTTPD.Response.negotiateEncoding("gzip;q=0, deflate;q=0"));
+        assertNull(NanoHTTPD.Response.negotiateEncoding("*;q=0"));
+        assertEquals("gzip", NanoHTTPD.Response.negotiateEncoding("gzip, deflate"));
+        assertEquals("gzip", NanoHTTPD.Response.negotiateEncoding("*"));
+        assertEquals("deflate", NanoHTTPD.Response.negotiateEncoding("gzip;q=0.5, deflate"));
+        assertEquals("deflate", NanoHTTPD.Response.negotiateEncoding("deflate, *;q=0"));
+        assertEquals("gzip", NanoHTTPD.Response.negotiateEncoding("X-GZIP ; q=0.8"));
+    }
+
+    @Test
+    public void testCompressibleMimeTypes() {
+        assertTrue(NanoHTTPD.Response.isCompressibleMimeType("text/html; charset=utf-8"));
+        assertTrue(NanoHTTPD.Response.isCompressibleMimeType("application/json"));
+        assertTrue(NanoHTTPD.Response.isCompressibleMimeType("image/svg+xml"));
+        assertFalse(NanoHTTPD.Response.isCompressibleMimeType("image/png"));
+        assertFalse(NanoHTTPD.Response.isCompressibleMimeType("application/zip"));
+        assertFalse(NanoHTTPD.Response.isCompressibleMimeType(null));
+    }
+
+    @Test
+    public void testGzipResponse() throws Exception {
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", BODY);
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: gzip, deflate\n");
+
+        String head = head(outputStream);
+        assertTrue(head.contains("Vary: Accept-Encoding\r\n"));
+        assertTrue(head.contains("Content-Encoding: gzip\r\n"));
+        assertTrue(head.contains("Transfer-Encoding: chunked\r\n"));
+        assertFalse(head.contains("Content-Length"));
+        assertEquals(BODY, read(new GZIPInputStream(new ByteArrayInputStream(dechunk(outputStream)))));
+    }
+
+    @Test
+    public void testDeflateResponseDropsContentLength() throws Exception {
+        testServer.response = new NanoHTTPD.Response(OK, "application/json", BODY);
+        testServer.response.addHeader("Content-Length", String.valueOf(BODY.length()));
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: deflate\n");
+
+        String head = head(outputStream);
+        assertTrue(head.contains("Content-Encoding: deflate\r\n"));
+        assertFalse(head.contains("Content-Length"));
+        assertEquals(BODY, read(new InflaterInputStream(new ByteArrayInputStream(dechunk(outputStream)))));
+    }
+
+    @Test
+    public void testSmallBodyIsNotCompressed() throws Exception {
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", "tiny");
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: gzip\n");
+
+        String[] expected = {
+                "HTTP/1.1 200 OK",
+                "Content-Type: text/plain",
+                "Date: .*",
+                "Vary: Accept-Encoding",
+                "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
+                "Content-Length: 4",
+                "",
+                "tiny"
+        };
+        assertResponse(outputStream, expected);
+    }
+
+    @Test
+    public void testCompressedMimeTypeIsNotCompressed() throws Exception {
+        testServer.response = new NanoHTTPD.Response(OK, "image/png", BODY);
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: gzip\n");
+
+        String head = head(outputStream);
+        assertFalse(head.contains("Vary"));
+        assertFalse(head.contains("Content-Encoding"));
+        assertTrue(head.contains("Content-Length: " + BODY.length() + "\r\n"));
+    }
+
+    @Test
+    public void testHeadSendsSameHeadersAsGet() throws Exception {
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", BODY);
+        String get = head(invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: gzip\n"));
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", BODY);
+        ByteArrayOutputStream outputStream = invokeServer("HEAD " + URI + " HTTP/1.1\nAccept-Encoding: gzip\n");
+
+        String response = outputStream.toString("ISO-8859-1");
+        assertEquals(get.replaceAll("Date: [^\r]*", ""), head(outputStream).replaceAll("Date: [^\r]*", ""));
+        assertTrue(response.endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    public void testHttp10ResponseIsNotCompressed() throws Exception {
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", BODY);
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.0\nAccept-Encoding: gzip\n");
+
+        String head = head(outputStream);
+        assertFalse(head.contains("Content-Encoding"));
+        assertFalse(head.contains("Transfer-Encoding"));
+        assertTrue(head.contains("Content-Length: " + BODY.length() + "\r\n"));
+    }
+
+    @Test
+    public void testCompressionLevelIsApplied() throws Exception {
+        testServer.setCompressionLevel(Deflater.NO_COMPRESSION);
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", BODY);
+        byte[] stored = dechunk(invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: gzip\n"));
+        testServer.setCompressionLevel(Deflater.BEST_COMPRESSION);
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", BODY);
+        byte[] compressed = dechunk(invokeServer("GET " + URI + " HTTP/1.1\nAccept-Encoding: gzip\n"));
+
+        assertTrue(stored.length > BODY.length());
+        assertTrue(compressed.length < BODY.length() / 4);
+        assertEquals(BODY, read(new GZIPInputStream(new ByteArrayInputStream(stored))));
+    }
+
+    private String head(ByteArrayOutputStream outputStream) throws IOException {
+        String response = outputStream.toString("ISO-8859-1");
+        return response.substring(0, response.indexOf("\r\n\r\n") + 2);
+    }
+
+    private byte[] dechunk(ByteArrayOutputStream outputStream) throws IOException {
+        String response = outputStream.toString("ISO-8859-1");
+        int pos = response.indexOf("\r\n\r\n") + 4;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            int eol = response.indexOf("\r\n", pos);
+            int size = Integer.parseInt(response.substring(pos, eol), 16);
+            if (size == 0) {
+                return body.toByteArray();
+            }
+            body.write(response.substring(eol + 2, eol + 2 + size).getBytes("ISO-8859-1"));
+            pos = eol + 2 + size + 2;
+        }
+    }
+
+    private String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
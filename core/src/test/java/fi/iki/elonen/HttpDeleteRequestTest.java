@@ -21,6 +21,7 @@ public class HttpDeleteRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
@@ -39,6 +40,7 @@ public class HttpDeleteRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
@@ -57,6 +59,7 @@ public class HttpDeleteRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
@@ -75,6 +78,7 @@ public class HttpDeleteRequestTest extends HttpServerTest {
                 "Content-Type: application/xml",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 8",
                 "",
                 "<body />"
@@ -94,6 +98,7 @@ public class HttpDeleteRequestTest extends HttpServerTest {
                 "Content-Type: application/xml",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 8",
                 "",
                 "<body />"
@@ -0,0 +1,72 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class HttpExpectContinueTest extends HttpServerTest {
+
+    @Test
+    public void testContinueIsSentWhenBodyIsRead() throws Exception {
+        ByteArrayOutputStream outputStream = invokeServer("POST " + URI + " HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 5\r\n\r\nhello");
+
+        String[] expected = {
+                "HTTP/1.1 100 Continue",
+                "",
+                "HTTP/1.1 200 OK",
+                "Content-Type: text/html",
+                "Date: .*",
+                "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
+                "Content-Length: 0",
+                ""
+        };
+        assertResponse(outputStream, expected);
+        assertEquals("hello", testServer.files.get("postData"));
+    }
+
+    @Test
+    public void testOversizedBodyIsRejectedBeforeServe() throws Exception {
+        testServer.setMaxBodySize(4);
+        ByteArrayOutputStream outputStream = invokeServer("POST " + URI + " HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 5\r\n\r\nhello");
+
+        String[] expected = {
+                "HTTP/1.1 413 Request Entity Too Large",
+                "Content-Type: text/plain",
+                "Date: .*",
+                "Connection: close",
+        };
+        assertResponse(outputStream, expected);
+        assertNull(testServer.uri);
+    }
+
+    @Test
+    public void testContentLengthBeyondIntegerRange() throws Exception {
+        testServer.setMaxBodySize(Integer.MAX_VALUE);
+        ByteArrayOutputStream outputStream = invokeServer("PUT " + URI + " HTTP/1.1\r\nContent-Length: 3000000000\r\n\r\n");
+
+        assertTrue(outputStream.toString().startsWith("HTTP/1.1 413 Request Entity Too Large"));
+    }
+
+    @Test
+    public void testRequestRejectedByCheckIsNotContinued() throws Exception {
+        testServer = new TestServer() {
+            @Override
+            protected Response checkRequest(IHTTPSession session) {
+                return new Response(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "");
+            }
+        };
+        ByteArrayOutputStream outputStream = invokeServer("POST " + URI + " HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 5\r\n\r\n");
+
+        String response = outputStream.toString();
+        assertTrue(response.startsWith("HTTP/1.1 401 Unauthorized"));
+        assertTrue(response.contains("Connection: close"));
+        assertFalse(response.contains("100 Continue"));
+        assertNull(testServer.uri);
+    }
+}
@@ -0,0 +1,138 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import static fi.iki.elonen.NanoHTTPD.Response.Status.OK;
+import static fi.iki.elonen.NanoHTTPD.Response.Status.PARTIAL_CONTENT;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class HttpFileResponseTest extends HttpServerTest {
+
+    @Test
+    public void testFileRegionIsSent() throws Exception {
+        File file = File.createTempFile("NanoHTTPD-test-", ".txt");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("0123456789".getBytes());
+            out.close();
+
+            testServer.response = new NanoHTTPD.Response(PARTIAL_CONTENT, "text/plain", new FileInputStream(file).getChannel(), 2, 5);
+            ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1");
+
+            String[] expected = {
+                    "HTTP/1.1 206 Partial Content",
+                    "Content-Type: text/plain",
+                    "Date: .*",
+                    "Connection: keep-alive",
+                    "Keep-Alive: timeout=5",
+                    "Content-Length: 5",
+                    "",
+                    "23456"
+            };
+            assertResponse(outputStream, expected);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testConnectionIsClosedWhenFileIsShorterThanRegion() throws Exception {
+        File file = File.createTempFile("NanoHTTPD-test-", ".txt");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("0123456789".getBytes());
+            out.close();
+
+            NanoHTTPD.Response response = new NanoHTTPD.Response(OK, "text/plain", new FileInputStream(file).getChannel(), 2, 20);
+            final boolean[] closed = new boolean[1];
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    closed[0] = true;
+                }
+            };
+            response.send(outputStream);
+
+            assertTrue(outputStream.toString().endsWith("Content-Length: 20\r\n\r\n23456789"));
+            assertTrue(closed[0]);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFileRegionIsNotSentForHeadRequest() throws Exception {
+        File file = File.createTempFile("NanoHTTPD-test-", ".txt");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write("0123456789".getBytes());
+            out.close();
+
+            testServer.response = new NanoHTTPD.Response(PARTIAL_CONTENT, "text/plain", new FileInputStream(file).getChannel(), 0, 10);
+            ByteArrayOutputStream outputStream = invokeServer("HEAD " + URI + " HTTP/1.1");
+
+            String[] expected = {
+                    "HTTP/1.1 206 Partial Content",
+                    "Content-Type: text/plain",
+                    "Date: .*",
+                    "Connection: keep-alive",
+                    "Keep-Alive: timeout=5",
+                    "Content-Length: 10",
+                    ""
+            };
+            assertResponse(outputStream, expected);
+            assertEquals(expected.length, getOutputLines(outputStream).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testExplicitLengthIsUsedInsteadOfAvailable() throws Exception {
+        ByteArrayInputStream data = new ByteArrayInputStream("0123456789".getBytes()) {
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        };
+        testServer.response = new NanoHTTPD.Response(OK, "text/plain", data, 5);
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1");
+
+        String[] expected = {
+                "HTTP/1.1 200 OK",
+                "Content-Type: text/plain",
+                "Date: .*",
+                "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
+                "Content-Length: 5",
+                "",
+                "01234"
+        };
+        assertResponse(outputStream, expected);
+    }
+
+    @Test
+    public void testContentLengthBeyondTwoGigabytes() throws Exception {
+        long length = 3L * 1024 * 1024 * 1024;
+        testServer.response = new NanoHTTPD.Response(OK, "application/octet-stream", new ByteArrayInputStream(new byte[0]), length);
+        ByteArrayOutputStream outputStream = invokeServer("HEAD " + URI + " HTTP/1.1");
+
+        String[] expected = {
+                "HTTP/1.1 200 OK",
+                "Content-Type: application/octet-stream",
+                "Date: .*",
+                "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
+                "Content-Length: 3221225472",
+                ""
+        };
+        assertResponse(outputStream, expected);
+    }
+}
@@ -18,6 +18,7 @@ public class HttpGetRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
@@ -36,6 +37,7 @@ public class HttpGetRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 8",
                 "",
                 responseBody
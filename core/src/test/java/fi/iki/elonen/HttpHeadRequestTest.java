@@ -24,6 +24,7 @@ public class HttpHeadRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 8",
                 ""
         };
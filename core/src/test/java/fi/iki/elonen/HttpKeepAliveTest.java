@@ -1,10 +1,23 @@
 package fi.iki.elonen;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PipedInputStream;
+import java.io.OutputStream;
 import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -18,6 +31,7 @@ public class HttpKeepAliveTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
@@ -33,12 +47,235 @@ public class HttpKeepAliveTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
         testManyRequests(request, expected);
     }
 
+    @Test
+    public void testBodyStreamEndsAtMessageBoundary() throws Exception {
+        final StringBuilder bodies = new StringBuilder();
+        TestServer server = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                this.uri = session.getUri();
+                if ("/read".equals(uri)) {
+                    try {
+                        InputStream in = session.getInputStream();
+                        int c;
+                        while ((c = in.read()) != -1) {
+                            bodies.append((char) c);
+                        }
+                    } catch (IOException e) {
+                        bodies.append(e);
+                    }
+                }
+                return response;
+            }
+        };
+        String requests = "PUT /read HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello" +
+                "PUT /ignore HTTP/1.1\r\nContent-Length: 20\r\n\r\nthis body is skipped" +
+                "GET /last HTTP/1.1\r\n\r\n";
+        NanoHTTPD.HTTPSession session = server.createSession(new TestTempFileManager(), new ByteArrayInputStream(requests.getBytes()), new ByteArrayOutputStream());
+
+        session.execute();
+        assertEquals("hello", bodies.toString());
+        session.execute();
+        assertEquals("/ignore", server.uri);
+        session.execute();
+        assertEquals("/last", server.uri);
+    }
+
+    @Test
+    public void testRequestStateIsResetBetweenRequests() throws Exception {
+        String requests = "GET /first?a=1 HTTP/1.1\r\nX-First: yes\r\nCookie: name=value\r\n\r\n" +
+                "GET /second HTTP/1.1\r\n\r\n";
+        final List<String> cookies = new ArrayList<String>();
+        TestServer server = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                this.uri = session.getUri();
+                this.header = session.getHeaders();
+                this.parms = session.getParms();
+                this.queryParameterString = session.getQueryParameterString();
+                cookies.add(session.getCookies().read("name"));
+                return response;
+            }
+        };
+        NanoHTTPD.HTTPSession session = server.createSession(new TestTempFileManager(), new ByteArrayInputStream(requests.getBytes()),
+                new ByteArrayOutputStream(), InetAddress.getByName("192.168.1.1"));
+
+        session.execute();
+        assertEquals("yes", server.header.get("x-first"));
+        assertEquals("1", server.parms.get("a"));
+        assertEquals("a=1", server.queryParameterString);
+
+        session.execute();
+        assertEquals("/second", server.uri);
+        assertNull(server.header.get("x-first"));
+        assertEquals("192.168.1.1", server.header.get("remote-addr"));
+        assertNull(server.parms.get("a"));
+        assertNull(server.queryParameterString);
+        assertEquals(Arrays.asList("value", null), cookies);
+    }
+
+    @Test
+    public void testAllocationPerKeepAliveRequest() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // not a HotSpot JVM, nothing to measure with
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        int count = 2000;
+        String request = "GET " + URI + "?q=1 HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\nCookie: a=b\r\n\r\n";
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            requests.append(request);
+        }
+        testServer = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                return response;
+            }
+        };
+        testServer.response = new NanoHTTPD.Response("");
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        NanoHTTPD.HTTPSession session = testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream(requests.toString().getBytes()), discard);
+        for (int i = 0; i < count / 2; i++) {
+            session.execute();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count / 2; i++) {
+            session.execute();
+        }
+        long perRequest = (threadBean.getThreadAllocatedBytes(threadId) - before) / (count / 2);
+        // Well below the 8 KB header buffer, which must not be allocated per request.
+        assertTrue("Allocated " + perRequest + " bytes per request", perRequest < 4096);
+    }
+
+    @Test
+    public void testConnectionCloseIsHonoured() throws Exception {
+        ClosableOutputStream outputStream = new ClosableOutputStream();
+        testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream("GET / HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes()), outputStream).execute();
+
+        assertTrue(outputStream.toString().contains("\r\nConnection: close\r\n"));
+        assertFalse(outputStream.toString().contains("Keep-Alive"));
+        assertTrue(outputStream.closed);
+    }
+
+    @Test
+    public void testHttp10ClosesUnlessKeepAliveIsAsked() throws Exception {
+        ClosableOutputStream outputStream = new ClosableOutputStream();
+        testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream("GET / HTTP/1.0\r\n\r\n".getBytes()), outputStream).execute();
+        assertTrue(outputStream.toString().contains("\r\nConnection: close\r\n"));
+        assertTrue(outputStream.closed);
+
+        outputStream = new ClosableOutputStream();
+        testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n".getBytes()), outputStream).execute();
+        assertTrue(outputStream.toString().contains("\r\nConnection: keep-alive\r\nKeep-Alive: timeout=5\r\n"));
+        assertFalse(outputStream.closed);
+    }
+
+    @Test
+    public void testMaxRequestsAndTimeoutAreAdvertised() throws Exception {
+        testServer.setKeepAliveTimeout(15000);
+        testServer.setMaxKeepAliveRequests(2);
+        ClosableOutputStream outputStream = new ClosableOutputStream();
+        String requests = "GET /1 HTTP/1.1\r\n\r\nGET /2 HTTP/1.1\r\n\r\n";
+        NanoHTTPD.HTTPSession session = testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream(requests.getBytes()), outputStream);
+
+        session.execute();
+        assertTrue(outputStream.toString().contains("\r\nConnection: keep-alive\r\nKeep-Alive: timeout=15, max=1\r\n"));
+        assertFalse(outputStream.closed);
+        outputStream.reset();
+
+        session.execute();
+        assertTrue(outputStream.toString().contains("\r\nConnection: close\r\n"));
+        assertTrue(outputStream.closed);
+    }
+
+    @Test
+    public void testConnectionCloseFromHandlerClosesConnection() throws Exception {
+        testServer.response.addHeader("Connection", "close");
+        ClosableOutputStream outputStream = new ClosableOutputStream();
+        testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream("GET / HTTP/1.1\r\n\r\n".getBytes()), outputStream).execute();
+
+        assertTrue(outputStream.closed);
+    }
+
+    @Test
+    public void testBodyIsNotReadWhenConnectionCloses() throws Exception {
+        testServer = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                Response r = new Response(Response.Status.REQUEST_ENTITY_TOO_LARGE, MIME_PLAINTEXT, "");
+                r.addHeader("Connection", "close");
+                return r;
+            }
+        };
+        final byte[] header = "PUT / HTTP/1.1\r\nContent-Length: 100000000\r\n\r\n".getBytes();
+        final long[] read = new long[1];
+        InputStream endlessBody = new InputStream() {
+            @Override
+            public int read() {
+                return read[0] < header.length ? header[(int) read[0]++] : body(1);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (read[0] < header.length) {
+                    b[off] = header[(int) read[0]++];
+                    return 1;
+                }
+                return body(len);
+            }
+
+            private int body(int len) {
+                read[0] += len;
+                return len == 1 ? 'x' : len;
+            }
+        };
+        ClosableOutputStream outputStream = new ClosableOutputStream();
+        testServer.createSession(new TestTempFileManager(), endlessBody, outputStream).execute();
+
+        assertTrue(outputStream.toString().startsWith("HTTP/1.1 413 "));
+        assertTrue(outputStream.closed);
+        assertTrue(read[0] < header.length + 64 * 1024);
+    }
+
+    @Test
+    public void testNegativeContentLengthIsRejected() throws Exception {
+        ByteArrayOutputStream outputStream = invokeServer("PUT " + URI + " HTTP/1.1\r\nContent-Length: -5\r\n\r\n");
+
+        assertTrue(outputStream.toString().startsWith("HTTP/1.1 400 Bad Request"));
+        assertNull(testServer.uri);
+    }
+
+    private static class ClosableOutputStream extends ByteArrayOutputStream {
+        private boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
     private Throwable error = null;
     
     /**
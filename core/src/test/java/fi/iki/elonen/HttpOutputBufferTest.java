@@ -0,0 +1,195 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static fi.iki.elonen.NanoHTTPD.Response.Status.OK;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class HttpOutputBufferTest extends HttpServerTest {
+
+    @Test
+    public void testSmallResponseIsWrittenAtOnce() throws Exception {
+        RecordingOutputStream socket = new RecordingOutputStream();
+        NanoHTTPD.ConnectionOutputStream out = new NanoHTTPD.ConnectionOutputStream(socket, null);
+        testServer.response = new NanoHTTPD.Response(OK, NanoHTTPD.MIME_PLAINTEXT, "Hello, world");
+        testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream(("GET " + URI + " HTTP/1.1\r\n\r\n").getBytes()), out).execute();
+
+        assertEquals(1, socket.writes.size());
+        assertEquals(1, socket.flushes);
+        String response = socket.toString("ISO-8859-1");
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response.endsWith("\r\n\r\nHello, world"));
+    }
+
+    @Test
+    public void testChunkedResponseIsCoalesced() throws Exception {
+        RecordingOutputStream socket = new RecordingOutputStream();
+        NanoHTTPD.ConnectionOutputStream out = new NanoHTTPD.ConnectionOutputStream(socket, null);
+        testServer.response = new NanoHTTPD.Response(OK, NanoHTTPD.MIME_PLAINTEXT, new ByteArrayInputStream("chunked body".getBytes()));
+        testServer.response.setChunkedTransfer(true);
+        testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream(("GET " + URI + " HTTP/1.1\r\n\r\n").getBytes()), out).execute();
+
+        assertEquals(1, socket.writes.size());
+        assertTrue(socket.toString("ISO-8859-1").endsWith("\r\n\r\nc\r\nchunked body\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    public void testLargeWritesKeepTheirOrder() throws Exception {
+        RecordingOutputStream socket = new RecordingOutputStream();
+        NanoHTTPD.ConnectionOutputStream out = new NanoHTTPD.ConnectionOutputStream(socket, null);
+        byte[] large = new byte[NanoHTTPD.ConnectionOutputStream.BUFFER_SIZE * 2];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        out.write("head".getBytes());
+        out.write(large);
+        out.write('!');
+        out.flush();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write("head".getBytes());
+        expected.write(large);
+        expected.write('!');
+        assertEquals(expected.toString("ISO-8859-1"), socket.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void testLargeWriteGoesToTheStreamWhole() throws Exception {
+        RecordingOutputStream socket = new RecordingOutputStream();
+        NanoHTTPD.ConnectionOutputStream out = new NanoHTTPD.ConnectionOutputStream(socket, null);
+        out.write("head".getBytes());
+        out.write(new byte[NanoHTTPD.ConnectionOutputStream.BUFFER_SIZE * 4]);
+        out.flush();
+
+        assertEquals(Arrays.asList(4, NanoHTTPD.ConnectionOutputStream.BUFFER_SIZE * 4), socket.writes);
+    }
+
+    @Test
+    public void testNothingIsWrittenBeforeFlush() throws Exception {
+        RecordingOutputStream socket = new RecordingOutputStream();
+        NanoHTTPD.ConnectionOutputStream out = new NanoHTTPD.ConnectionOutputStream(socket, null);
+        out.write("buffered".getBytes());
+        assertEquals(0, socket.writes.size());
+
+        out.close();
+        assertEquals("buffered", socket.toString("ISO-8859-1"));
+        assertTrue(socket.closed);
+    }
+
+    @Test
+    public void testPipelinedResponsesAreFlushedOnce() throws Exception {
+        RecordingOutputStream socket = new RecordingOutputStream();
+        NanoHTTPD.ConnectionOutputStream out = new NanoHTTPD.ConnectionOutputStream(socket, null);
+        String requests = "GET /1 HTTP/1.1\r\n\r\nGET /2 HTTP/1.1\r\n\r\nHEAD /3 HTTP/1.1\r\n\r\n";
+        testServer = new OkServer();
+        NanoHTTPD.HTTPSession session = testServer.createSession(new TestTempFileManager(), new ByteArrayInputStream(requests.getBytes()), out);
+
+        session.execute();
+        assertEquals("/1", testServer.uri);
+        session.execute();
+        assertEquals("/2", testServer.uri);
+        assertEquals(0, socket.flushes);
+        session.execute();
+        assertEquals("/3", testServer.uri);
+
+        assertEquals(1, socket.flushes);
+        assertEquals(1, socket.writes.size());
+        String response = socket.toString("ISO-8859-1");
+        assertEquals(3, response.split("HTTP/1.1 200 OK").length - 1);
+        assertEquals(2, response.split("\r\n\r\nok").length - 1);
+    }
+
+    @Test
+    public void testHeldBackResponsesAreFlushedBeforeWaitingForTheClient() throws Exception {
+        final PipedOutputStream requests = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(requests);
+        final PipedInputStream responses = new PipedInputStream(1 << 16);
+        PipedOutputStream out = new PipedOutputStream(responses);
+        testServer = new OkServer();
+        final NanoHTTPD.HTTPSession session = testServer.createSession(new TestTempFileManager(), in, new NanoHTTPD.ConnectionOutputStream(out, null));
+        final Throwable[] error = new Throwable[1];
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        session.execute();
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        // The second request arrives only partly with the first, and is completed once the first is answered.
+        requests.write("GET /1 HTTP/1.1\r\n\r\nGET /2 HTTP/1.1\r\n".getBytes());
+        requests.flush();
+        assertEquals(1, countResponses(responses, 1));
+        requests.write("\r\nGET /3 HTTP/1.1\r\n\r\n".getBytes());
+        requests.flush();
+        assertEquals(2, countResponses(responses, 2));
+        server.join(5000);
+        assertEquals(null, error[0]);
+    }
+
+    private int countResponses(InputStream in, int expected) throws Exception {
+        StringBuilder received = new StringBuilder();
+        int count = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count < expected && System.currentTimeMillis() < deadline) {
+            if (in.available() == 0) {
+                Thread.sleep(10);
+                continue;
+            }
+            received.append((char) in.read());
+            if (received.toString().endsWith("\r\n\r\nok")) {
+                count++;
+                received.setLength(0);
+            }
+        }
+        return count;
+    }
+
+    private static class OkServer extends TestServer {
+        @Override
+        public Response serve(IHTTPSession session) {
+            this.uri = session.getUri();
+            return new Response(OK, MIME_PLAINTEXT, "ok");
+        }
+    }
+
+    private static class RecordingOutputStream extends ByteArrayOutputStream {
+        private final List<Integer> writes = new ArrayList<Integer>();
+        private int flushes;
+        private boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+}
@@ -4,8 +4,11 @@ import org.junit.Test;
 
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.Random;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 public class HttpParsingTest extends HttpServerTest {
     @Test
@@ -29,4 +32,114 @@ public class HttpParsingTest extends HttpServerTest {
     public void testPlusInQueryParams() throws Exception {
         assertEquals("foo bar", testServer.decodePercent("foo+bar"));
     }
+
+    @Test
+    public void testHeaderParserLocatesRequestLineAndHeaders() throws Exception {
+        byte[] request = "GET /index.html?x=1 HTTP/1.1\r\nHost:  localhost \nX-Empty:\r\nACCEPT: */*\r\n\r\nbody".getBytes();
+        NanoHTTPD.RequestHeaderParser parser = new NanoHTTPD.RequestHeaderParser();
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals("GET", new String(request, parser.methodStart, parser.methodEnd - parser.methodStart));
+        assertEquals("/index.html?x=1", new String(request, parser.uriStart, parser.uriEnd - parser.uriStart));
+        assertEquals("HTTP/1.1", new String(request, parser.protocolStart, parser.protocolEnd - parser.protocolStart));
+        assertEquals(3, parser.headerCount);
+        assertEquals("host", parser.headerName(request, 0));
+        assertEquals("localhost", parser.headerValue(request, 0));
+        assertEquals("x-empty", parser.headerName(request, 1));
+        assertEquals("", parser.headerValue(request, 1));
+        assertEquals("accept", parser.headerName(request, 2));
+        assertEquals("*/*", parser.headerValue(request, 2));
+    }
+
+    @Test
+    public void testHeaderParserIgnoresHeadersWithoutProtocolVersion() throws Exception {
+        byte[] request = "GET /\nHost: localhost\n\n".getBytes();
+        NanoHTTPD.RequestHeaderParser parser = new NanoHTTPD.RequestHeaderParser();
+
+        assertTrue(parser.parse(request, request.length));
+        assertEquals(0, parser.headerCount);
+        assertFalse(parser.parse(request, 0));
+    }
+
+    @Test
+    public void testMethodLookupIgnoresCase() throws Exception {
+        byte[] method = "xpost".getBytes();
+        assertEquals(NanoHTTPD.Method.POST, NanoHTTPD.Method.lookup(method, 1, 5));
+        assertEquals(null, NanoHTTPD.Method.lookup(method, 0, 5));
+    }
+
+    @Test
+    public void testHeaderEndFoundAcrossFragments() throws Exception {
+        byte[] request = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\nbody".getBytes();
+        NanoHTTPD.HeaderEndScanner scanner = new NanoHTTPD.HeaderEndScanner();
+        int end = 0;
+        int len = 0;
+        while (end == 0 && len < request.length) {
+            end = scanner.scan(request, ++len);
+        }
+        assertEquals(request.length - "body".length(), end);
+    }
+
+    @Test
+    public void testHeaderEndWithBareLineFeeds() throws Exception {
+        NanoHTTPD.HeaderEndScanner scanner = new NanoHTTPD.HeaderEndScanner();
+        byte[] request = "GET / HTTP/1.1\nHost: localhost\n\nbody".getBytes();
+        assertEquals(request.length - "body".length(), scanner.scan(request, request.length));
+
+        byte[] mixed = "GET / HTTP/1.1\nHost: localhost\n\r\nbody".getBytes();
+        assertEquals(mixed.length - "body".length(), scanner.scan(mixed, mixed.length));
+
+        byte[] incomplete = "GET / HTTP/1.1\r\nHost: localhost\r\n".getBytes();
+        assertEquals(0, scanner.scan(incomplete, incomplete.length));
+    }
+
+    @Test
+    public void testBoundarySearch() throws Exception {
+        NanoHTTPD.BoundarySearch search = new NanoHTTPD.BoundarySearch("\n--abcab".getBytes());
+        byte[] body = "x\n--abcaa\n--abcab\n--ab\n--abcabyz\n--abcab".getBytes();
+
+        assertEquals(9, search.indexOf(body, 0, body.length));
+        assertEquals(9, search.indexOf(body, 9, body.length));
+        assertEquals(22, search.indexOf(body, 10, body.length));
+        assertEquals(-1, search.indexOf(body, 0, 16));
+        assertEquals(9, search.indexOf(body, 0, 17));
+
+        int[] positions = new int[2];
+        assertEquals(2, search.findAll(body, 0, body.length, positions));
+        assertEquals(9, positions[0]);
+        assertEquals(22, positions[1]);
+        positions = new int[8];
+        assertEquals(3, search.findAll(body, 0, body.length, positions));
+        assertEquals(body.length - 8, positions[2]);
+    }
+
+    @Test
+    public void testBoundarySearchMatchesNaiveSearch() throws Exception {
+        byte[] pattern = "\r\n--aab".getBytes();
+        NanoHTTPD.BoundarySearch search = new NanoHTTPD.BoundarySearch(pattern);
+        Random random = new Random(42);
+        byte[] alphabet = "\r\n-ab".getBytes();
+        byte[] body = new byte[20000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        int from = 0;
+        while (true) {
+            int expected = -1;
+            for (int i = from; expected < 0 && i + pattern.length <= body.length; i++) {
+                int j = 0;
+                while (j < pattern.length && body[i + j] == pattern[j]) {
+                    j++;
+                }
+                if (j == pattern.length) {
+                    expected = i;
+                }
+            }
+            assertEquals(expected, search.indexOf(body, from, body.length));
+            if (expected < 0) {
+                break;
+            }
+            from = expected + 1;
+        }
+    }
 }
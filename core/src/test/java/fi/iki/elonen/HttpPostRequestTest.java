@@ -3,13 +3,20 @@ package fi.iki.elonen;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 
 public class HttpPostRequestTest extends HttpServerTest {
 
@@ -130,6 +137,252 @@ public class HttpPostRequestTest extends HttpServerTest {
       assertEquals(fileNameWithSpace, fileNameAfter);
     }
     
+    @Test
+    public void testMultipartUploadLargerThanReadBuffer() throws Exception {
+        String divider = UUID.randomUUID().toString();
+        StringBuilder fileContent = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            // Lines that look like the start of a boundary must survive.
+            fileContent.append("row ").append(i).append("\r\n--").append(divider.substring(0, i % divider.length())).append("\n");
+        }
+        String content = "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + FIELD + "\"\r\n" +
+                "\r\n" +
+                VALUE + "\r\n" +
+                "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"upload\"; filename=\"big.txt\"\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                fileContent + "\r\n" +
+                "--" + divider + "--\r\n";
+        String input = "POST " + URI + " HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + divider + "\r\n" +
+                CONTENT_LENGTH + content.length() + "\r\n\r\n" + content;
+        invokeServer(input);
+
+        assertEquals(2, testServer.parms.size());
+        assertEquals(VALUE, testServer.parms.get(FIELD));
+        assertEquals("big.txt", testServer.parms.get("upload"));
+        assertEquals(fileContent.toString(), readFile(testServer.files.get("upload")));
+    }
+
+    @Test
+    public void testMultipartFieldKeepsLineBreaks() throws Exception {
+        String divider = UUID.randomUUID().toString();
+        String content = "preamble\r\n--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + FIELD + "\"\r\n" +
+                "\r\n" +
+                "first\r\nsecond\r\n" +
+                "--" + divider + "--\r\n";
+        String input = "POST " + URI + " HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=\"" + divider + "\"\r\n" +
+                CONTENT_LENGTH + content.length() + "\r\n\r\n" + content;
+        invokeServer(input);
+
+        assertEquals(1, testServer.parms.size());
+        assertEquals("first\r\nsecond", testServer.parms.get(FIELD));
+    }
+
+    @Test
+    public void testSmallFormPostIsReadWithoutTempFile() throws Exception {
+        String content = FIELD + "=" + VALUE.replace(' ', '+') + "&" + FIELD2 + "=" + VALUE2.replace(' ', '+');
+        String input = "POST " + URI + " HTTP/1.1\r\nContent-Type: application/x-www-form-urlencoded\r\n" +
+                CONTENT_LENGTH + content.length() + "\r\n\r\n" + content;
+        CountingTempFileManager tempFileManager = new CountingTempFileManager();
+        invokeServer(tempFileManager, input);
+
+        assertEquals(0, tempFileManager.created);
+        assertEquals(VALUE, testServer.parms.get(FIELD));
+        assertEquals(VALUE2, testServer.parms.get(FIELD2));
+    }
+
+    @Test
+    public void testPostAboveMemoryThresholdIsSpooled() throws Exception {
+        testServer.setMaxInMemoryBodySize(16);
+        String input = "POST " + URI + " HTTP/1.1\r\n" +
+                CONTENT_LENGTH + VALUE_TEST_SIMPLE_RAW_DATA_WITH_AMPHASIS.length() + "\r\n\r\n" + VALUE_TEST_SIMPLE_RAW_DATA_WITH_AMPHASIS;
+        CountingTempFileManager tempFileManager = new CountingTempFileManager();
+        invokeServer(tempFileManager, input);
+
+        assertEquals(1, tempFileManager.created);
+        assertEquals(VALUE_TEST_SIMPLE_RAW_DATA_WITH_AMPHASIS, testServer.files.get(POST_RAW_CONTENT_FILE_ENTRY));
+    }
+
+    @Test
+    public void testMultipartFilePartsAreWrittenToHandlerSinks() throws Exception {
+        final Map<String, ByteArrayOutputStream> sinks = new HashMap<String, ByteArrayOutputStream>();
+        final List<String> opened = new ArrayList<String>();
+        final NanoHTTPD.MultipartHandler handler = new NanoHTTPD.MultipartHandler() {
+            @Override
+            public OutputStream openPart(String name, String filename, String contentType) {
+                opened.add(name + ";" + filename + ";" + contentType);
+                ByteArrayOutputStream sink = new ByteArrayOutputStream();
+                sinks.put(name, sink);
+                return sink;
+            }
+
+            @Override
+            public void abortPart(String name, OutputStream out) {
+                throw new AssertionError("Part " + name + " aborted");
+            }
+        };
+        testServer = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                this.parms = session.getParms();
+                this.files = new HashMap<String, String>();
+                try {
+                    session.parseBody(files, handler);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                return response;
+            }
+        };
+        String divider = UUID.randomUUID().toString();
+        String content = "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + FIELD + "\"\r\n" +
+                "\r\n" +
+                VALUE + "\r\n" +
+                "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"upload\"; filename=\"canyon.jpg\"\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "\r\n" +
+                VALUE2 + "\r\n" +
+                "--" + divider + "--\r\n";
+        String input = "POST " + URI + " HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + divider + "\r\n" +
+                CONTENT_LENGTH + content.length() + "\r\n\r\n" + content;
+        CountingTempFileManager tempFileManager = new CountingTempFileManager();
+        invokeServer(tempFileManager, input);
+
+        assertEquals(0, tempFileManager.created);
+        assertEquals(Arrays.asList("upload;canyon.jpg;image/jpeg"), opened);
+        assertEquals(VALUE2, sinks.get("upload").toString());
+        assertEquals(VALUE, testServer.parms.get(FIELD));
+        assertEquals("canyon.jpg", testServer.parms.get("upload"));
+        assertEquals(0, testServer.files.size());
+    }
+
+    @Test
+    public void testTruncatedMultipartFileIsRejected() throws Exception {
+        final List<File> tempFiles = new ArrayList<File>();
+        NanoHTTPD.TempFileManager tempFileManager = new TestTempFileManager() {
+            @Override
+            public NanoHTTPD.TempFile createTempFile() throws Exception {
+                NanoHTTPD.TempFile tempFile = super.createTempFile();
+                tempFiles.add(new File(tempFile.getName()));
+                return tempFile;
+            }
+        };
+        RejectingServer server = new RejectingServer(null);
+        testServer = server;
+        invokeServer(tempFileManager, truncatedMultipartUpload());
+
+        assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, server.error.getStatus());
+        assertEquals(VALUE, server.parms.get(FIELD));
+        assertFalse(server.files.containsKey("upload"));
+        assertEquals(1, tempFiles.size());
+        assertFalse(tempFiles.get(0).exists());
+    }
+
+    @Test
+    public void testTruncatedMultipartPartIsAbortedInHandler() throws Exception {
+        final List<String> aborted = new ArrayList<String>();
+        final boolean[] closed = new boolean[1];
+        RejectingServer server = new RejectingServer(new NanoHTTPD.MultipartHandler() {
+            @Override
+            public OutputStream openPart(String name, String filename, String contentType) {
+                return new ByteArrayOutputStream() {
+                    @Override
+                    public void close() {
+                        closed[0] = true;
+                    }
+                };
+            }
+
+            @Override
+            public void abortPart(String name, OutputStream out) {
+                aborted.add(name);
+            }
+        });
+        testServer = server;
+        invokeServer(truncatedMultipartUpload());
+
+        assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, server.error.getStatus());
+        assertEquals(Arrays.asList("upload"), aborted);
+        assertFalse(closed[0]);
+    }
+
+    @Test
+    public void testTruncatedMultipartFieldIsRejected() throws Exception {
+        String divider = UUID.randomUUID().toString();
+        String content = "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + FIELD + "\"\r\n" +
+                "\r\n" +
+                VALUE;
+        RejectingServer server = new RejectingServer(null);
+        testServer = server;
+        invokeServer("POST " + URI + " HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + divider + "\r\n" +
+                CONTENT_LENGTH + content.length() + "\r\n\r\n" + content);
+
+        assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, server.error.getStatus());
+        assertFalse(server.parms.containsKey(FIELD));
+    }
+
+    private String truncatedMultipartUpload() {
+        String divider = UUID.randomUUID().toString();
+        String content = "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + FIELD + "\"\r\n" +
+                "\r\n" +
+                VALUE + "\r\n" +
+                "--" + divider + "\r\n" +
+                "Content-Disposition: form-data; name=\"upload\"; filename=\"canyon.jpg\"\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "\r\n" +
+                "the first half of the file";
+        return "POST " + URI + " HTTP/1.1\r\nContent-Type: multipart/form-data; boundary=" + divider + "\r\n" +
+                CONTENT_LENGTH + content.length() + "\r\n\r\n" + content;
+    }
+
+    /**
+     * Parses the body with the given handler and keeps the exception it fails with.
+     */
+    private static class RejectingServer extends TestServer {
+        private final NanoHTTPD.MultipartHandler handler;
+        private NanoHTTPD.ResponseException error;
+
+        RejectingServer(NanoHTTPD.MultipartHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            this.parms = session.getParms();
+            this.files = new HashMap<String, String>();
+            try {
+                session.parseBody(files, handler);
+            } catch (ResponseException e) {
+                error = e;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return response;
+        }
+    }
+
+    private String readFile(String path) throws Exception {
+        FileInputStream in = new FileInputStream(new File(path));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+            return out.toString();
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * contains common preparation steps for testing POST with Multipart Form
      * @param fileName Name of file to be uploaded
@@ -20,6 +20,7 @@ public class HttpPutRequestTest extends HttpServerTest {
                 "Content-Type: text/html",
                 "Date: .*",
                 "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
                 "Content-Length: 0",
                 ""
         };
@@ -42,4 +43,28 @@ public class HttpPutRequestTest extends HttpServerTest {
             }
         }
     }
+
+    @Test
+    public void testPutBodyIsWrittenToOneTempFile() throws Exception {
+        final String[] content = new String[1];
+        testServer = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                Response response = super.serve(session);
+                try {
+                    BufferedReader reader = new BufferedReader(new FileReader(files.get("content")));
+                    content[0] = reader.readLine();
+                    reader.close();
+                } catch (Exception e) {
+                    content[0] = e.toString();
+                }
+                return response;
+            }
+        };
+        CountingTempFileManager tempFileManager = new CountingTempFileManager();
+        invokeServer(tempFileManager, "PUT " + URI + " HTTP/1.1\r\nContent-Length: 10\r\n\r\nBodyData 1 and more");
+
+        assertEquals(1, tempFileManager.created);
+        assertEquals("BodyData 1", content[0]);
+    }
 }
@@ -0,0 +1,73 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+
+public class HttpResponseHeaderTest extends HttpServerTest {
+
+    @Test
+    public void testDefaultHeadersAreSkippedWhenSetInAnyCase() throws Exception {
+        testServer.response = new NanoHTTPD.Response("abc");
+        testServer.response.addHeader("date", "Thu, 1 Jan 1970 00:00:00 GMT");
+        testServer.response.addHeader("CONNECTION", "close");
+        testServer.response.addHeader("content-LENGTH", "3");
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1");
+
+        String[] expected = {
+                "HTTP/1.1 200 OK",
+                "Content-Type: text/html",
+                "date: Thu, 1 Jan 1970 00:00:00 GMT",
+                "CONNECTION: close",
+                "content-LENGTH: 3",
+                "",
+                "abc"
+        };
+        assertResponse(outputStream, expected);
+        assertEquals(expected.length, getOutputLines(outputStream).size());
+    }
+
+    @Test
+    public void testCustomStatusIsWritten() throws Exception {
+        NanoHTTPD.Response.IStatus teapot = new NanoHTTPD.Response.IStatus() {
+            @Override
+            public int getRequestStatus() {
+                return 418;
+            }
+
+            @Override
+            public String getDescription() {
+                return "418 I'm a teapot";
+            }
+        };
+        testServer.response = new NanoHTTPD.Response(teapot, NanoHTTPD.MIME_PLAINTEXT, "");
+        ByteArrayOutputStream outputStream = invokeServer("GET " + URI + " HTTP/1.1");
+
+        String[] expected = {
+                "HTTP/1.1 418 I'm a teapot",
+                "Content-Type: text/plain",
+                "Date: .*",
+                "Connection: keep-alive",
+                "Keep-Alive: timeout=5",
+                "Content-Length: 0",
+                ""
+        };
+        assertResponse(outputStream, expected);
+    }
+
+    @Test
+    public void testDateIsSharedWithinOneSecond() {
+        byte[] first;
+        byte[] second;
+        long before;
+        do {
+            before = System.currentTimeMillis() / 1000;
+            first = NanoHTTPD.HttpDate.now();
+            second = NanoHTTPD.HttpDate.now();
+        } while (before != System.currentTimeMillis() / 1000);
+        assertSame(first, second);
+    }
+}
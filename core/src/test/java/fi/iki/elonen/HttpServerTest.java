@@ -66,6 +66,17 @@ public class HttpServerTest {
         return outputStream;
     }
 
+    protected ByteArrayOutputStream invokeServer(NanoHTTPD.TempFileManager tempFileManager, String request) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        NanoHTTPD.HTTPSession session = testServer.createSession(tempFileManager, new ByteArrayInputStream(request.getBytes()), outputStream);
+        try {
+            session.execute();
+        } finally {
+            tempFileManager.clear();
+        }
+        return outputStream;
+    }
+
     protected List<String> getOutputLines(ByteArrayOutputStream outputStream) throws IOException {
         BufferedReader reader = new BufferedReader(new StringReader(outputStream.toString()));
         return readLinesFromFile(reader);
@@ -94,6 +105,16 @@ public class HttpServerTest {
         }
     }
 
+    public static class CountingTempFileManager extends NanoHTTPD.DefaultTempFileManager {
+        public int created;
+
+        @Override
+        public NanoHTTPD.TempFile createTempFile() throws Exception {
+            created++;
+            return super.createTempFile();
+        }
+    }
+
     public static class TestServer extends NanoHTTPD {
         public Response response = new Response("");
         public String uri;
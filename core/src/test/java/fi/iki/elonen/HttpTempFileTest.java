@@ -0,0 +1,295 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class HttpTempFileTest extends HttpServerTest {
+
+    @Test
+    public void testSmallTempFileStaysInMemory() throws Exception {
+        NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(64 * 1024, 1024 * 1024);
+        NanoHTTPD.TempFileManager manager = factory.create();
+        NanoHTTPD.MemoryTempFile tempFile = (NanoHTTPD.MemoryTempFile) manager.createTempFile();
+        byte[] data = data(20000);
+        OutputStream out = tempFile.open();
+        out.write(data, 0, 100);
+        out.write(data, 100, data.length - 100);
+        out.close();
+
+        assertTrue(tempFile.isInMemory());
+        assertEquals(data.length, tempFile.length());
+        assertEquals(new String(data, "ISO-8859-1"), read(tempFile.getInputStream()));
+        assertEquals(3 * 8 * 1024, factory.getMemoryUsed());
+
+        manager.clear();
+        assertEquals(0, factory.getMemoryUsed());
+    }
+
+    @Test
+    public void testTempFileOverflowsToDisk() throws Exception {
+        NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(16 * 1024, 1024 * 1024);
+        NanoHTTPD.TempFileManager manager = factory.create();
+        NanoHTTPD.MemoryTempFile tempFile = (NanoHTTPD.MemoryTempFile) manager.createTempFile();
+        byte[] data = data(40000);
+        tempFile.open().write(data);
+
+        assertFalse(tempFile.isInMemory());
+        assertEquals(0, factory.getMemoryUsed());
+        assertEquals(data.length, tempFile.length());
+        assertEquals(new String(data, "ISO-8859-1"), read(tempFile.getInputStream()));
+
+        File file = new File(tempFile.getName());
+        assertEquals(data.length, file.length());
+        manager.clear();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testGlobalBudgetIsSharedBetweenManagers() throws Exception {
+        NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(64 * 1024, 16 * 1024);
+        NanoHTTPD.TempFileManager first = factory.create();
+        NanoHTTPD.TempFileManager second = factory.create();
+        NanoHTTPD.MemoryTempFile firstFile = (NanoHTTPD.MemoryTempFile) first.createTempFile();
+        NanoHTTPD.MemoryTempFile secondFile = (NanoHTTPD.MemoryTempFile) second.createTempFile();
+        firstFile.open().write(data(16 * 1024));
+        secondFile.open().write(data(10));
+
+        assertTrue(firstFile.isInMemory());
+        assertFalse(secondFile.isInMemory());
+
+        first.clear();
+        second.clear();
+        assertEquals(0, factory.getMemoryUsed());
+    }
+
+    @Test
+    public void testGetNameMovesDataToDisk() throws Exception {
+        NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(64 * 1024, 1024 * 1024);
+        NanoHTTPD.TempFileManager manager = factory.create();
+        NanoHTTPD.MemoryTempFile tempFile = (NanoHTTPD.MemoryTempFile) manager.createTempFile();
+        tempFile.open().write("abc".getBytes());
+
+        File file = new File(tempFile.getName());
+        assertFalse(tempFile.isInMemory());
+        assertEquals(3, file.length());
+        assertEquals(0, factory.getMemoryUsed());
+
+        tempFile.open().write("def".getBytes());
+        assertEquals("abcdef", read(tempFile.getInputStream()));
+        manager.clear();
+    }
+
+    @Test
+    public void testPostAboveMemoryThresholdIsSpooledInMemory() throws Exception {
+        NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(64 * 1024, 1024 * 1024);
+        testServer.setMaxInMemoryBodySize(16);
+        String content = "Test raw data & Result value";
+        String input = "POST " + URI + " HTTP/1.1\r\nContent-Length: " + content.length() + "\r\n\r\n" + content;
+        invokeServer(factory.create(), input);
+
+        assertEquals(content, testServer.files.get("postData"));
+        assertEquals(0, factory.getMemoryUsed());
+    }
+
+    @Test
+    public void testPutBodyTakenAsTempFileStaysInMemory() throws Exception {
+        NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(64 * 1024, 1024 * 1024);
+        final List<String> seen = new ArrayList<String>();
+        testServer = new TestServer() {
+            @Override
+            public Response serve(IHTTPSession session) {
+                Map<String, String> files = new HashMap<String, String>();
+                Map<String, TempFile> tempFiles = new HashMap<String, TempFile>();
+                try {
+                    session.parseBody(files, tempFiles);
+                    MemoryTempFile content = (MemoryTempFile) tempFiles.get("content");
+                    seen.add(String.valueOf(content.isInMemory()));
+                    seen.add(read(content.getInputStream()));
+                    seen.add(String.valueOf(files.containsKey("content")));
+                } catch (Exception e) {
+                    seen.add(e.toString());
+                }
+                return new Response("");
+            }
+        };
+        String content = "Test raw data & Result value";
+        invokeServer(factory.create(), "PUT " + URI + " HTTP/1.1\r\nContent-Length: " + content.length() + "\r\n\r\n" + content);
+
+        assertEquals(Arrays.asList("true", content, "false"), seen);
+        assertEquals(0, factory.getMemoryUsed());
+    }
+
+    @Test
+    public void testDefaultTempFileIsOpenedLazily() throws Exception {
+        NanoHTTPD.DefaultTempFileManager manager = new NanoHTTPD.DefaultTempFileManager();
+        NanoHTTPD.TempFile tempFile = manager.createTempFile();
+        File file = new File(tempFile.getName());
+        assertTrue(file.exists());
+        manager.clear();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testCleanerDeletesFilesInBackground() throws Exception {
+        File dir = tempDir();
+        NanoHTTPD.TempFileCleaner cleaner = new NanoHTTPD.TempFileCleaner(dir.getPath());
+        cleaner.start();
+        try {
+            NanoHTTPD.DefaultTempFileManager manager = new NanoHTTPD.DefaultTempFileManager(cleaner);
+            List<File> files = new ArrayList<File>();
+            for (int i = 0; i < 10; i++) {
+                NanoHTTPD.TempFile tempFile = manager.createTempFile();
+                tempFile.open().write(data(100));
+                files.add(new File(tempFile.getName()));
+            }
+            manager.clear();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cleaner.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, cleaner.getPendingCount());
+            assertEquals(10, cleaner.getDeletedCount());
+            for (File file : files) {
+                assertFalse(file.exists());
+            }
+        } finally {
+            cleaner.shutdown();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testCleanerDeletesLeftoversOnStartAndShutdown() throws Exception {
+        File dir = tempDir();
+        File leftover = File.createTempFile("NanoHTTPD-", "", dir);
+        File other = File.createTempFile("other-", "", dir);
+        NanoHTTPD.TempFileCleaner cleaner = new NanoHTTPD.TempFileCleaner(dir.getPath());
+        cleaner.start();
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+
+        leftover = File.createTempFile("NanoHTTPD-", "", dir);
+        cleaner.shutdown();
+        assertFalse(leftover.exists());
+        assertEquals(2, cleaner.getLeftoversDeletedCount());
+        other.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testCleanerKeepsToItsOwnDirectory() throws Exception {
+        File foreign = File.createTempFile("NanoHTTPD-", "");
+        NanoHTTPD.TempFileCleaner cleaner = new NanoHTTPD.TempFileCleaner();
+        File dir = new File(cleaner.getTmpdir());
+        try {
+            cleaner.start();
+            NanoHTTPD.DefaultTempFileManager manager = new NanoHTTPD.DefaultTempFileManager(cleaner);
+            File file = new File(manager.createTempFile().getName());
+            assertEquals(dir.getAbsoluteFile(), file.getParentFile());
+
+            cleaner.shutdown();
+            assertTrue(foreign.exists());
+            assertFalse(file.exists());
+            assertFalse(dir.exists());
+        } finally {
+            foreign.delete();
+        }
+    }
+
+    @Test
+    public void testCleanerRemovesDirectoriesOfGoneServers() throws Exception {
+        File abandoned = new File(System.getProperty("java.io.tmpdir"), "NanoHTTPD-server-test-" + System.nanoTime());
+        abandoned.mkdir();
+        new File(abandoned, ".lock").createNewFile();
+        File leftover = File.createTempFile("NanoHTTPD-", "", abandoned);
+        NanoHTTPD.TempFileCleaner running = new NanoHTTPD.TempFileCleaner();
+        NanoHTTPD.TempFileCleaner cleaner = new NanoHTTPD.TempFileCleaner();
+        try {
+            cleaner.start();
+            assertFalse(leftover.exists());
+            assertFalse(abandoned.exists());
+            assertTrue(new File(running.getTmpdir()).exists());
+        } finally {
+            cleaner.shutdown();
+            running.shutdown();
+            leftover.delete();
+            new File(abandoned, ".lock").delete();
+            abandoned.delete();
+        }
+    }
+
+    @Test
+    public void testSpilledMemoryTempFilesGoThroughTheCleaner() throws Exception {
+        NanoHTTPD.TempFileCleaner cleaner = new NanoHTTPD.TempFileCleaner();
+        try {
+            NanoHTTPD.MemoryTempFileManagerFactory factory = new NanoHTTPD.MemoryTempFileManagerFactory(64 * 1024, 1024 * 1024, cleaner);
+            NanoHTTPD.TempFileManager manager = factory.create();
+            NanoHTTPD.MemoryTempFile spilled = (NanoHTTPD.MemoryTempFile) manager.createTempFile();
+            spilled.open().write(data(10));
+            File file = new File(spilled.getName());
+            manager.createTempFile().open().write(data(10));
+
+            assertEquals(new File(cleaner.getTmpdir()).getAbsoluteFile(), file.getParentFile());
+            manager.clear();
+            assertFalse(file.exists());
+            assertEquals(1, cleaner.getDeletedCount());
+            assertEquals(0, factory.getMemoryUsed());
+        } finally {
+            cleaner.shutdown();
+        }
+    }
+
+    @Test
+    public void testCleanerDeletesRightAwayUntilStarted() throws Exception {
+        File dir = tempDir();
+        NanoHTTPD.TempFileCleaner cleaner = new NanoHTTPD.TempFileCleaner(dir.getPath());
+        NanoHTTPD.DefaultTempFileManager manager = new NanoHTTPD.DefaultTempFileManager(cleaner);
+        File file = new File(manager.createTempFile().getName());
+        manager.clear();
+
+        assertFalse(file.exists());
+        assertEquals(0, cleaner.getPendingCount());
+        dir.delete();
+    }
+
+    private File tempDir() throws IOException {
+        File dir = File.createTempFile("NanoHTTPD-test-", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        in.close();
+        return out.toString("ISO-8859-1");
+    }
+}
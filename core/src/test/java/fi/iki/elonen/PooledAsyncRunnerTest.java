@@ -0,0 +1,74 @@
+package fi.iki.elonen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.*;
+
+public class PooledAsyncRunnerTest {
+    private NanoHTTPD.PooledAsyncRunner runner;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        runner = new NanoHTTPD.PooledAsyncRunner(1, 1, 1);
+        runner.setRetryAfter(7);
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        runner.shutdown();
+    }
+
+    @Test
+    public void testRequestsBeyondPoolAndQueueAreRejected() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        runner.exec(new BlockingHandler(started));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        BlockingHandler queued = new BlockingHandler(null);
+        runner.exec(queued);
+        assertEquals(1, runner.getQueueDepth());
+
+        BlockingHandler rejected = new BlockingHandler(null);
+        runner.exec(rejected);
+
+        assertNull(queued.rejection);
+        assertNotNull(rejected.rejection);
+        assertEquals(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE, rejected.rejection.getStatus());
+        assertEquals("7", rejected.rejection.getHeader("Retry-After"));
+        assertEquals(1, runner.getRejectedCount());
+        assertEquals(1, runner.getActiveCount());
+    }
+
+    private class BlockingHandler implements NanoHTTPD.ClientHandler {
+        private final CountDownLatch started;
+        private NanoHTTPD.Response rejection;
+
+        private BlockingHandler(CountDownLatch started) {
+            this.started = started;
+        }
+
+        @Override
+        public void run() {
+            if (started != null) {
+                started.countDown();
+            }
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        public void reject(NanoHTTPD.Response response) {
+            rejection = response;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package fi.iki.elonen;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.*;
+
+public class VirtualThreadAsyncRunnerTest {
+
+    @Test
+    public void testRequestRunsOnDaemonThread() throws Exception {
+        NanoHTTPD.VirtualThreadAsyncRunner runner = new NanoHTTPD.VirtualThreadAsyncRunner();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread[] ranOn = new Thread[1];
+        runner.exec(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ranOn[0].isDaemon());
+        assertTrue(ranOn[0].getName().startsWith("NanoHttpd Request Processor"));
+        assertTrue(ranOn[0].getName().endsWith(")"));
+    }
+
+    @Test
+    public void testVirtualThreadsUsedWhenAvailable() throws Exception {
+        boolean supported;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        assertEquals(supported, new NanoHTTPD.VirtualThreadAsyncRunner().isVirtual());
+    }
+}
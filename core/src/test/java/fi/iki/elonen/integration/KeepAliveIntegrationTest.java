@@ -0,0 +1,76 @@
+package fi.iki.elonen.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class KeepAliveIntegrationTest extends IntegrationTestBase<KeepAliveIntegrationTest.TestServer> {
+
+    @Test
+    public void testOldestIdleConnectionIsClosed() throws Exception {
+        Socket first = new Socket("localhost", 8192);
+        Socket second = new Socket("localhost", 8192);
+        try {
+            first.setSoTimeout(5000);
+            second.setSoTimeout(5000);
+            assertTrue(request(first).contains("Connection: keep-alive"));
+            awaitIdleConnections(1);
+            assertTrue(request(second).contains("Connection: keep-alive"));
+
+            // The first connection was evicted when the second one became idle.
+            assertEquals(-1, first.getInputStream().read());
+            assertTrue(request(second).contains("Connection: keep-alive"));
+            awaitIdleConnections(1);
+            assertEquals(1, testServer.getIdleConnectionCount());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private void awaitIdleConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (testServer.getIdleConnectionCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private String request(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+        out.flush();
+        InputStream in = socket.getInputStream();
+        StringBuilder response = new StringBuilder();
+        int read;
+        while (!response.toString().endsWith("\r\n\r\nok") && (read = in.read()) != -1) {
+            response.append((char) read);
+        }
+        return response.toString();
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        TestServer testServer = new TestServer();
+        testServer.setMaxIdleConnections(1);
+        return testServer;
+    }
+
+    public static class TestServer extends NanoHTTPD {
+        public TestServer() {
+            super(8192);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return new Response(Response.Status.OK, MIME_PLAINTEXT, "ok");
+        }
+    }
+}
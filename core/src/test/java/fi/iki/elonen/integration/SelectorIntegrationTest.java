@@ -0,0 +1,160 @@
+package fi.iki.elonen.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class SelectorIntegrationTest extends IntegrationTestBase<SelectorIntegrationTest.TestServer> {
+
+    @Test
+    public void testRepeatedGetRequestsOnOneConnection() throws Exception {
+        ResponseHandler<String> responseHandler = new BasicResponseHandler();
+        for (int i = 0; i < 10; i++) {
+            HttpGet httpget = new HttpGet("http://localhost:8192/?count=" + i);
+            assertEquals("GET:" + i, httpclient.execute(httpget, responseHandler));
+        }
+    }
+
+    @Test
+    public void testPutRequestBodyIsReadAfterHeader() throws Exception {
+        String expected = "This HttpPut request is served by the selector.";
+
+        HttpPut httpput = new HttpPut("http://localhost:8192/");
+        httpput.setEntity(new ByteArrayEntity(expected.getBytes()));
+        ResponseHandler<String> responseHandler = new BasicResponseHandler();
+
+        assertEquals("PUT:" + expected, httpclient.execute(httpput, responseHandler));
+    }
+
+    @Test
+    public void testHeaderSentInFragments() throws Exception {
+        Socket socket = new Socket("localhost", 8192);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /?count=1 HTTP/1.1\r\n".getBytes());
+            out.flush();
+            Thread.sleep(100);
+            out.write("Host: localhost\r\n\r".getBytes());
+            out.flush();
+            Thread.sleep(100);
+            out.write("\n".getBytes());
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            int read;
+            while (!response.toString().endsWith("GET:1") && (read = in.read()) != -1) {
+                response.append((char) read);
+            }
+            assertEquals(true, response.toString().startsWith("HTTP/1.1 200 OK"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedRequestsAndLaterRequestsOnOneConnection() throws Exception {
+        Socket socket = new Socket("localhost", 8192);
+        try {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("GET /?count=1 HTTP/1.1\r\n\r\nGET /?count=2 HTTP/1.1\r\n\r\n".getBytes());
+            out.flush();
+            assertEquals(true, readUntil(in, "GET:2").contains("GET:1"));
+
+            // The connection went back to the selector in between.
+            Thread.sleep(100);
+            out.write("GET /?count=3 HTTP/1.1\r\n\r\n".getBytes());
+            out.flush();
+            assertEquals(true, readUntil(in, "GET:3").startsWith("HTTP/1.1 200 OK"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String readUntil(InputStream in, String end) throws IOException {
+        StringBuilder response = new StringBuilder();
+        int read;
+        while (!response.toString().endsWith(end) && (read = in.read()) != -1) {
+            response.append((char) read);
+        }
+        return response.toString();
+    }
+
+    @Test
+    public void testFileRegionIsTransferredToSocket() throws Exception {
+        File file = File.createTempFile("NanoHTTPD-test-", ".txt");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            for (int i = 0; i < 10000; i++) {
+                out.write("0123456789".getBytes());
+            }
+            out.close();
+            testServer.file = file;
+
+            HttpGet httpget = new HttpGet("http://localhost:8192/file");
+            ResponseHandler<String> responseHandler = new BasicResponseHandler();
+            String responseBody = httpclient.execute(httpget, responseHandler);
+
+            assertEquals(99990, responseBody.length());
+            assertEquals(true, responseBody.startsWith("56789012"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Override public TestServer createTestServer() {
+        TestServer testServer = new TestServer();
+        testServer.setUseSelector(true);
+        return testServer;
+    }
+
+    public static class TestServer extends NanoHTTPD {
+        public File file;
+
+        public TestServer() {
+            super(8192);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            Method method = session.getMethod();
+            if ("/file".equals(session.getUri())) {
+                try {
+                    return new Response(Response.Status.OK, MIME_PLAINTEXT, new FileInputStream(file).getChannel(), 5, file.length() - 10);
+                } catch (IOException e) {
+                    return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+                }
+            }
+            if (Method.PUT.equals(method)) {
+                Map<String, String> headers = session.getHeaders();
+                int contentLength = Integer.parseInt(headers.get("content-length"));
+                byte[] body = new byte[contentLength];
+                try {
+                    new DataInputStream(session.getInputStream()).readFully(body, 0, contentLength);
+                } catch (IOException e) {
+                    return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+                }
+                return new Response(method + ":" + new String(body));
+            }
+            return new Response(method + ":" + session.getParms().get("count"));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package fi.iki.elonen.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class ServerOptionsIntegrationTest extends IntegrationTestBase<ServerOptionsIntegrationTest.TestServer> {
+
+    @Test
+    public void testTimeoutsDefaultToIdleTimeout() {
+        NanoHTTPD.ServerOptions options = new NanoHTTPD.ServerOptions().setIdleTimeout(7000);
+        assertEquals(7000, options.getHeaderTimeout());
+        assertEquals(7000, options.getBodyTimeout());
+        options.setHeaderTimeout(0).setBodyTimeout(100);
+        assertEquals(0, options.getHeaderTimeout());
+        assertEquals(100, options.getBodyTimeout());
+
+        testServer.setKeepAliveTimeout(3000);
+        assertEquals(3000, testServer.getServerOptions().getIdleTimeout());
+    }
+
+    @Test
+    public void testIncompleteHeaderTimesOut() throws Exception {
+        assertClosedAfterPartialHeader();
+    }
+
+    @Test
+    public void testIncompleteHeaderTimesOutOnSelector() throws Exception {
+        testServer.stop();
+        testServer.setUseSelector(true);
+        testServer.start();
+        assertClosedAfterPartialHeader();
+    }
+
+    @Test
+    public void testIdleConnectionOutlivesHeaderTimeout() throws Exception {
+        Socket socket = new Socket("localhost", 8192);
+        try {
+            socket.setSoTimeout(5000);
+            Thread.sleep(600);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+            out.flush();
+            assertTrue(read(socket.getInputStream()).endsWith("\r\n\r\nok"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void assertClosedAfterPartialHeader() throws Exception {
+        Socket socket = new Socket("localhost", 8192);
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: local".getBytes());
+            out.flush();
+            long start = System.currentTimeMillis();
+            assertEquals("", read(socket.getInputStream()));
+            assertTrue(System.currentTimeMillis() - start < 4000);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String read(InputStream in) {
+        StringBuilder response = new StringBuilder();
+        try {
+            int read;
+            while (!response.toString().endsWith("\r\n\r\nok") && (read = in.read()) != -1) {
+                response.append((char) read);
+            }
+        } catch (IOException ignored) {
+            // A reset counts as closed, too.
+        }
+        return response.toString();
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        TestServer testServer = new TestServer();
+        testServer.setServerOptions(new NanoHTTPD.ServerOptions()
+                .setBacklog(128)
+                .setReuseAddress(true)
+                .setTcpNoDelay(true)
+                .setReceiveBufferSize(64 * 1024)
+                .setSendBufferSize(64 * 1024)
+                .setIdleTimeout(5000)
+                .setHeaderTimeout(300));
+        return testServer;
+    }
+
+    public static class TestServer extends NanoHTTPD {
+        public TestServer() {
+            super(8192);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return new Response(Response.Status.OK, MIME_PLAINTEXT, "ok");
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fi.iki.elonen;
+
+import java.util.Random;
+
+/**
+ * Compares the multipart boundary search with a byte-by-byte scan, on random data and on data
+ * full of near-matches of the boundary, and prints the throughput of both.  Lives in the
+ * <code>fi.iki.elonen</code> package to reach the package-private search.
+ * <p/>
+ * Usage: <code>BoundarySearchBenchmark [buffer MB] [rounds]</code>
+ */
+public class BoundarySearchBenchmark {
+
+    private static final byte[] DELIMITER = "\n------WebKitFormBoundary7MA4YWxkTrZu0gW".getBytes();
+
+    public static void main(String[] args) {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        byte[] random = new byte[size];
+        new Random(42).nextBytes(random);
+        byte[] nearMatches = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // The delimiter with its last byte changed, over and over.
+            int j = i % DELIMITER.length;
+            nearMatches[i] = j == DELIMITER.length - 1 ? (byte) 'x' : DELIMITER[j];
+        }
+
+        NanoHTTPD.BoundarySearch search = new NanoHTTPD.BoundarySearch(DELIMITER);
+        int[] positions = new int[64];
+        // Warm up, then measure.
+        run(search, positions, random, rounds / 4 + 1);
+        run(search, positions, nearMatches, rounds / 4 + 1);
+
+        System.out.println("data          search MB/s  byte scan MB/s");
+        print("random", run(search, positions, random, rounds), scan(random, rounds), size, rounds);
+        print("near matches", run(search, positions, nearMatches, rounds), scan(nearMatches, rounds), size, rounds);
+    }
+
+    private static void print(String data, long searchNanos, long scanNanos, int size, int rounds) {
+        double megabytes = (double) size * rounds / (1024 * 1024);
+        System.out.println(String.format("%-12s  %11.1f  %14.1f", data, megabytes / (searchNanos / 1e9), megabytes / (scanNanos / 1e9)));
+    }
+
+    private static long run(NanoHTTPD.BoundarySearch search, int[] positions, byte[] data, int rounds) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int r = 0; r < rounds; r++) {
+            found += search.findAll(data, 0, data.length, positions);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found != 0) {
+            throw new IllegalStateException("Unexpected match");
+        }
+        return elapsed;
+    }
+
+    /**
+     * The scan the multipart parser used before, on an array instead of a ByteBuffer: one byte
+     * at a time, backtracking on every partial match.
+     */
+    private static long scan(byte[] data, int rounds) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int r = 0; r < rounds; r++) {
+            int matchcount = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == DELIMITER[matchcount]) {
+                    matchcount++;
+                    if (matchcount == DELIMITER.length) {
+                        found++;
+                        matchcount = 0;
+                    }
+                } else {
+                    i -= matchcount;
+                    matchcount = 0;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found != 0) {
+            throw new IllegalStateException("Unexpected match");
+        }
+        return elapsed;
+    }
+}
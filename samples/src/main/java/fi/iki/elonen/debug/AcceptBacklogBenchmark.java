@@ -0,0 +1,121 @@
+package fi.iki.elonen.debug;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens bursts of connections against servers with different accept backlogs and prints how
+ * long the clients took to get their response.
+ * <p/>
+ * Usage: <code>AcceptBacklogBenchmark [connections per burst] [backlog...]</code>
+ */
+public class AcceptBacklogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int[] backlogs = {5, 50, 1024};
+        if (args.length > 1) {
+            backlogs = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                backlogs[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("backlog  connections  failed  p50 ms  p99 ms  max ms");
+        for (int backlog : backlogs) {
+            NanoHTTPD server = new NanoHTTPD("localhost", 0) {
+                @Override
+                public Response serve(IHTTPSession session) {
+                    return new Response("ok");
+                }
+            };
+            server.setServerOptions(new NanoHTTPD.ServerOptions().setBacklog(backlog).setTcpNoDelay(true));
+            server.start();
+            try {
+                // One burst to warm up, one to measure.
+                burst(server.getListeningPort(), connections);
+                long[] latencies = burst(server.getListeningPort(), connections);
+                int failed = 0;
+                while (failed < latencies.length && latencies[failed] < 0) {
+                    failed++;
+                }
+                long[] ok = Arrays.copyOfRange(latencies, failed, latencies.length);
+                System.out.println(String.format("%7d  %11d  %6d  %6d  %6d  %6d", backlog, connections, failed,
+                        percentile(ok, 50), percentile(ok, 99), percentile(ok, 100)));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Connects all clients at once and waits for them.
+     *
+     * @return the sorted latencies in milliseconds, -1 for each client that failed.
+     */
+    private static long[] burst(final int port, int connections) throws InterruptedException {
+        final long[] latencies = new long[connections];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < connections; i++) {
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    int index = next.getAndIncrement();
+                    latencies[index] = -1;
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        if (request(port)) {
+                            latencies[index] = (System.nanoTime() - begin) / 1000000;
+                        }
+                    } catch (Exception ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            client.setDaemon(true);
+            client.start();
+        }
+        start.countDown();
+        done.await();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static boolean request(int port) throws Exception {
+        Socket socket = new Socket("localhost", port);
+        try {
+            socket.setSoTimeout(30000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes());
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[1024];
+            int total = 0;
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                total += read;
+            }
+            return total > 0;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,81 @@
+package fi.iki.elonen.debug;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Decodes chunked request bodies made of chunks of different sizes and prints the throughput
+ * of the decoder, read in blocks and one byte at a time.
+ * <p/>
+ * Usage: <code>ChunkedDecodeBenchmark [body MB] [chunk size...]</code>
+ */
+public class ChunkedDecodeBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int bodySize = (args.length > 0 ? Integer.parseInt(args[0]) : 32) * 1024 * 1024;
+        int[] chunkSizes = {16, 256, 4096, 65536};
+        if (args.length > 1) {
+            chunkSizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                chunkSizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        byte[] body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+
+        System.out.println("chunk bytes  block MB/s  single byte MB/s");
+        for (int chunkSize : chunkSizes) {
+            byte[] encoded = encode(body, chunkSize);
+            // Warm up, then measure.
+            decode(encoded, bodySize, true);
+            decode(encoded, bodySize, false);
+            double megabytes = bodySize / (1024.0 * 1024.0);
+            long block = decode(encoded, bodySize, true);
+            long single = decode(encoded, bodySize, false);
+            System.out.println(String.format("%11d  %10.1f  %16.1f", chunkSize, megabytes / (block / 1e9), megabytes / (single / 1e9)));
+        }
+    }
+
+    private static byte[] encode(byte[] body, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + body.length / chunkSize * 8 + 16);
+        for (int off = 0; off < body.length; off += chunkSize) {
+            int len = Math.min(chunkSize, body.length - off);
+            out.write((Integer.toHexString(len) + "\r\n").getBytes());
+            out.write(body, off, len);
+            out.write("\r\n".getBytes());
+        }
+        out.write("0\r\n\r\n".getBytes());
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the nanoseconds spent decoding.
+     */
+    private static long decode(byte[] encoded, int bodySize, boolean blocks) throws IOException {
+        InputStream in = new NanoHTTPD.ChunkedInputStream(new ByteArrayInputStream(encoded), Long.MAX_VALUE);
+        byte[] buf = new byte[16 * 1024];
+        long total = 0;
+        long start = System.nanoTime();
+        if (blocks) {
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                total += read;
+            }
+        } else {
+            while (in.read() != -1) {
+                total++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (total != bodySize) {
+            throw new IllegalStateException("Decoded " + total + " of " + bodySize + " bytes");
+        }
+        return elapsed;
+    }
+}
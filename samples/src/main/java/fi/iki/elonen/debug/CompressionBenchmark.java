@@ -0,0 +1,103 @@
+package fi.iki.elonen.debug;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Serves a text body compressed at every level and prints throughput, CPU time and
+ * compression ratio per level.
+ * <p/>
+ * Usage: <code>CompressionBenchmark [body KB] [requests per level] [gzip|deflate]</code>
+ */
+public class CompressionBenchmark extends NanoHTTPD {
+
+    private final byte[] body;
+
+    public CompressionBenchmark(byte[] body) {
+        super(0);
+        this.body = body;
+        setCompressionEnabled(true);
+        setCompressionMinSize(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int bodySize = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String encoding = args.length > 2 ? args[2] : "gzip";
+
+        CompressionBenchmark server = new CompressionBenchmark(textBody(bodySize));
+        String request = "GET /data.json HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: " + encoding + "\r\n\r\n";
+        // Warm up, then measure.
+        server.run(request, requests, 6, false);
+
+        System.out.println("level  MB/s     CPU ms/MB  ratio");
+        for (int level = 0; level <= 9; level++) {
+            server.run(request, requests, level, true);
+        }
+    }
+
+    private void run(String request, int requests, int level, boolean print) throws IOException {
+        setCompressionLevel(level);
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < requests; i++) {
+            input.append(request);
+        }
+        CountingOutputStream sink = new CountingOutputStream();
+        HTTPSession session = new HTTPSession(new DefaultTempFileManager(), new ByteArrayInputStream(input.toString().getBytes("ISO-8859-1")), sink);
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long cpuBefore = bean.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            session.execute();
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = bean.getCurrentThreadCpuTime() - cpuBefore;
+
+        if (print) {
+            double megabytes = (double) body.length * requests / (1024 * 1024);
+            System.out.println(String.format("%5d  %7.1f  %9.2f  %5.3f", level, megabytes / (elapsed / 1e9),
+                    cpu / 1e6 / megabytes, (double) sink.count / ((long) body.length * requests)));
+        }
+    }
+
+    /**
+     * A JSON-like body that compresses about as well as typical API responses.
+     */
+    private static byte[] textBody(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        long seed = 42;
+        int i = 0;
+        while (sb.length() < size) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            sb.append("{\"id\":").append(i++).append(",\"name\":\"item-").append(Long.toHexString(seed >>> 40))
+                    .append("\",\"price\":").append((seed >>> 50) % 10000).append(",\"tags\":[\"a\",\"b\"]},\n");
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes();
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        return new Response(Response.Status.OK, "application/json", new ByteArrayInputStream(body));
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
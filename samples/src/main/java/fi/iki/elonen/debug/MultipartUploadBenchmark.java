@@ -0,0 +1,165 @@
+package fi.iki.elonen.debug;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Uploads multipart/form-data bodies of different sizes through a session and prints the
+ * throughput of parsing them, once into temp files and once into a handler's stream.
+ * <p/>
+ * Usage: <code>MultipartUploadBenchmark [size MB...]</code>, by default 1, 100 and 1024 MB.
+ */
+public class MultipartUploadBenchmark extends NanoHTTPD {
+
+    private static final String BOUNDARY = "----NanoHttpdBenchmarkBoundary7MA4YWxkTrZu0gW";
+
+    private final boolean toHandler;
+    private long received;
+
+    public MultipartUploadBenchmark(boolean toHandler) {
+        super(0);
+        this.toHandler = toHandler;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1, 100, 1024};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // Warm up, then measure.
+        new MultipartUploadBenchmark(false).upload(8L * 1024 * 1024);
+        new MultipartUploadBenchmark(true).upload(8L * 1024 * 1024);
+
+        System.out.println("size MB  temp file MB/s  handler MB/s");
+        for (int size : sizes) {
+            long bytes = (long) size * 1024 * 1024;
+            double toFile = new MultipartUploadBenchmark(false).upload(bytes);
+            double toHandler = new MultipartUploadBenchmark(true).upload(bytes);
+            System.out.println(String.format("%7d  %14.1f  %12.1f", size, toFile, toHandler));
+        }
+    }
+
+    /**
+     * @return the throughput in MB/s.
+     */
+    private double upload(long fileSize) throws IOException {
+        DefaultTempFileManager tempFileManager = new DefaultTempFileManager();
+        HTTPSession session = new HTTPSession(tempFileManager, new UploadInputStream(fileSize), new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        long start = System.nanoTime();
+        session.execute();
+        long elapsed = System.nanoTime() - start;
+        if (received != fileSize) {
+            throw new IllegalStateException("Received " + received + " of " + fileSize + " bytes");
+        }
+        return fileSize / (1024.0 * 1024.0) / (elapsed / 1e9);
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        Map<String, String> files = new HashMap<String, String>();
+        try {
+            if (toHandler) {
+                session.parseBody(files, new MultipartHandler() {
+                    @Override
+                    public OutputStream openPart(String name, String filename, String contentType) {
+                        return new OutputStream() {
+                            @Override
+                            public void write(int b) {
+                                received++;
+                            }
+
+                            @Override
+                            public void write(byte[] b, int off, int len) {
+                                received += len;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void abortPart(String name, OutputStream out) {
+                    }
+                });
+            } else {
+                session.parseBody(files);
+                received = new File(files.get("upload")).length();
+            }
+        } catch (Exception e) {
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.toString());
+        }
+        return new Response("ok");
+    }
+
+    /**
+     * Produces the request, with a file part of random bytes, without holding it in memory.
+     */
+    private static class UploadInputStream extends InputStream {
+        private final byte[] head;
+        private final byte[] tail;
+        private final byte[] block = new byte[64 * 1024];
+        private final long fileSize;
+        private long pos;
+
+        UploadInputStream(long fileSize) {
+            this.fileSize = fileSize;
+            new Random(42).nextBytes(block);
+            String partHeader = "--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"caption\"\r\n\r\nbenchmark\r\n" +
+                    "--" + BOUNDARY + "\r\n" +
+                    "Content-Disposition: form-data; name=\"upload\"; filename=\"data.bin\"\r\n" +
+                    "Content-Type: application/octet-stream\r\n\r\n";
+            String closing = "\r\n--" + BOUNDARY + "--\r\n";
+            long contentLength = partHeader.length() + fileSize + closing.length();
+            head = ("POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Type: multipart/form-data; boundary=" + BOUNDARY +
+                    "\r\nContent-Length: " + contentLength + "\r\n\r\n" + partHeader).getBytes();
+            tail = closing.getBytes();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long total = head.length + fileSize + tail.length;
+            if (pos >= total) {
+                return -1;
+            }
+            int n;
+            if (pos < head.length) {
+                n = Math.min(len, head.length - (int) pos);
+                System.arraycopy(head, (int) pos, b, off, n);
+            } else if (pos < head.length + fileSize) {
+                int inBlock = (int) ((pos - head.length) % block.length);
+                n = (int) Math.min(Math.min(len, block.length - inBlock), head.length + fileSize - pos);
+                System.arraycopy(block, inBlock, b, off, n);
+            } else {
+                int inTail = (int) (pos - head.length - fileSize);
+                n = Math.min(len, tail.length - inTail);
+                System.arraycopy(tail, inTail, b, off, n);
+            }
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package fi.iki.elonen.debug;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Runs keep-alive requests through a session and prints the heap allocated and the time spent
+ * per request, most of which goes into reading and parsing the request header.
+ * <p/>
+ * Usage: <code>RequestParserBenchmark [requests] [header lines]</code>
+ */
+public class RequestParserBenchmark extends NanoHTTPD {
+
+    public RequestParserBenchmark() {
+        super(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int headerLines = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        StringBuilder request = new StringBuilder("GET /assets/app.js?v=42&lang=en HTTP/1.1\r\nHost: localhost\r\n");
+        for (int i = 0; i < headerLines; i++) {
+            request.append("X-Header-").append(i).append(": some value of a typical length ").append(i).append("\r\n");
+        }
+        request.append("\r\n");
+        byte[] one = request.toString().getBytes("ISO-8859-1");
+
+        RequestParserBenchmark server = new RequestParserBenchmark();
+        // Warm up, then measure.
+        server.run(one, requests / 4);
+        long[] result = server.run(one, requests);
+        System.out.println(String.format("%d requests of %d bytes: %s bytes allocated and %d ns per request",
+                requests, one.length, result[0] < 0 ? "n/a" : String.valueOf(result[0] / requests), result[1] / requests));
+    }
+
+    /**
+     * @return bytes allocated by this thread (-1 if the JVM can't tell) and nanoseconds elapsed.
+     */
+    private long[] run(byte[] one, int requests) throws IOException {
+        // Feed the requests in batches, so the input itself doesn't need a huge array.
+        int batch = Math.max(1, Math.min(requests, (1 << 20) / one.length));
+        byte[] input = new byte[one.length * batch];
+        for (int i = 0; i < batch; i++) {
+            System.arraycopy(one, 0, input, i * one.length, one.length);
+        }
+        TempFileManager tempFileManager = new DefaultTempFileManager();
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int done = 0;
+        while (done < requests) {
+            HTTPSession session = new HTTPSession(tempFileManager, new ByteArrayInputStream(input), sink);
+            for (int i = 0; i < batch && done < requests; i++, done++) {
+                session.execute();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        return new long[]{allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore, elapsed};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        return new Response(Response.Status.OK, MIME_PLAINTEXT, "");
+    }
+}
@@ -1,12 +1,13 @@
 package fi.iki.elonen;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -91,7 +92,12 @@ public class SimpleWebServer extends NanoHTTPD {
             + "OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.";
     private static Map<String, WebServerPlugin> mimeTypeHandlers = new HashMap<String, WebServerPlugin>();
     private final List<File> rootDirs;
+    /**
+     * Set once all root directories have been found to be directories, so that isn't checked on every request.
+     */
+    private volatile boolean rootDirsChecked;
     private boolean quiet;
+    private StaticFileCache fileCache;
 
     public SimpleWebServer(String host, int port, File wwwroot, boolean quiet) {
         super(host, port);
@@ -119,6 +125,17 @@ public class SimpleWebServer extends NanoHTTPD {
     public void setQuiet(boolean q) {
     	this.quiet = q;
     }
+
+    /**
+     * Keeps small files in memory, see {@link StaticFileCache}.  Pass null to turn caching off.
+     */
+    public void setFileCache(StaticFileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public StaticFileCache getFileCache() {
+        return fileCache;
+    }
     
 
     /**
@@ -131,6 +148,8 @@ public class SimpleWebServer extends NanoHTTPD {
         String host = "127.0.0.1";
         List<File> rootDirs = new ArrayList<File>();
         boolean quiet = false;
+        boolean gzip = false;
+        long cacheSize = 0;
         Map<String, String> options = new HashMap<String, String>();
 
         // Parse command-line, with short and long versions of the options.
@@ -141,6 +160,10 @@ public class SimpleWebServer extends NanoHTTPD {
                 port = Integer.parseInt(args[i + 1]);
             } else if (args[i].equalsIgnoreCase("-q") || args[i].equalsIgnoreCase("--quiet")) {
                 quiet = true;
+            } else if (args[i].equalsIgnoreCase("-z") || args[i].equalsIgnoreCase("--gzip")) {
+                gzip = true;
+            } else if (args[i].equalsIgnoreCase("-c") || args[i].equalsIgnoreCase("--cache")) {
+                cacheSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
             } else if (args[i].equalsIgnoreCase("-d") || args[i].equalsIgnoreCase("--dir")) {
                 rootDirs.add(new File(args[i + 1]).getAbsoluteFile());
             } else if (args[i].equalsIgnoreCase("--licence")) {
@@ -164,6 +187,10 @@ public class SimpleWebServer extends NanoHTTPD {
         loadWebServerPlugins(quiet, options);
         
         SimpleWebServer server = new SimpleWebServer(host, port, rootDirs, quiet);
+        server.setCompressionEnabled(gzip);
+        if (cacheSize > 0) {
+            server.setFileCache(new StaticFileCache(cacheSize, Math.min(cacheSize / 16, 1024 * 1024), 1000));
+        }
 
 		ServerRunner.executeInstance(server);
     }
@@ -234,6 +261,7 @@ public class SimpleWebServer extends NanoHTTPD {
 
     public void addWwwRootDir(File wwwroot) {
         rootDirs.add(wwwroot);
+        rootDirsChecked = false;
     }
 
     /**
@@ -278,11 +306,14 @@ public class SimpleWebServer extends NanoHTTPD {
             }
         }
 
-        for (File homeDir : getRootDirs()) {
-            // Make sure we won't die of an exception later
-            if (!homeDir.isDirectory()) {
-                return getInternalErrorResponse("given path is not a directory (" + homeDir + ").");
+        if (!rootDirsChecked) {
+            for (File homeDir : getRootDirs()) {
+                // Make sure we won't die of an exception later
+                if (!homeDir.isDirectory()) {
+                    return getInternalErrorResponse("given path is not a directory (" + homeDir + ").");
+                }
             }
+            rootDirsChecked = true;
         }
         return respond(Collections.unmodifiableMap(header), session, uri);
     }
@@ -299,9 +330,9 @@ public class SimpleWebServer extends NanoHTTPD {
             return getForbiddenResponse("Won't serve ../ for security reasons.");
         }
 
+        List<File> roots = getRootDirs();
         boolean canServeUri = false;
         File homeDir = null;
-        List<File> roots = getRootDirs();
         for (int i = 0; !canServeUri && i < roots.size(); i++) {
             homeDir = roots.get(i);
             canServeUri = canServeUri(uri, homeDir);
@@ -310,8 +341,18 @@ public class SimpleWebServer extends NanoHTTPD {
             return getNotFoundResponse();
         }
 
-        // Browsers get confused without '/' after the directory, send a redirect.
         File f = new File(homeDir, uri);
+        StaticFileCache cache = fileCache;
+        // Only the file of the root that serves the uri is looked up.  Directories are never
+        // cached, their index file is looked up once it is known.
+        if (cache != null && headers.get("range") == null && !uri.endsWith("/")) {
+            StaticFileCache.Entry entry = cache.get(f);
+            if (entry != null) {
+                return serveCachedFile(headers, entry);
+            }
+        }
+
+        // Browsers get confused without '/' after the directory, send a redirect.
         if (f.isDirectory() && !uri.endsWith("/")) {
             uri += "/";
             Response res = createResponse(Response.Status.REDIRECT, NanoHTTPD.MIME_HTML, "<html><body>Redirected: <a href=\"" +
@@ -414,7 +455,7 @@ public class SimpleWebServer extends NanoHTTPD {
                     res.addHeader("Content-Range", "bytes 0-0/" + fileLen);
                     res.addHeader("ETag", etag);
                 } else {
-                    if (endAt < 0) {
+                    if (endAt < 0 || endAt >= fileLen) {
                         endAt = fileLen - 1;
                     }
                     long newLen = endAt - startFrom + 1;
@@ -423,15 +464,9 @@ public class SimpleWebServer extends NanoHTTPD {
                     }
 
                     final long dataLen = newLen;
-                    FileInputStream fis = new FileInputStream(file) {
-                        @Override
-                        public int available() throws IOException {
-                            return (int) dataLen;
-                        }
-                    };
-                    fis.skip(startFrom);
+                    FileChannel channel = new FileInputStream(file).getChannel();
 
-                    res = createResponse(Response.Status.PARTIAL_CONTENT, mime, fis);
+                    res = createResponse(Response.Status.PARTIAL_CONTENT, mime, channel, startFrom, dataLen);
                     res.addHeader("Content-Length", "" + dataLen);
                     res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
                     res.addHeader("ETag", etag);
@@ -440,7 +475,12 @@ public class SimpleWebServer extends NanoHTTPD {
                 if (etag.equals(header.get("if-none-match")))
                     res = createResponse(Response.Status.NOT_MODIFIED, mime, "");
                 else {
-                    res = createResponse(Response.Status.OK, mime, new FileInputStream(file));
+                    StaticFileCache cache = fileCache;
+                    StaticFileCache.Entry entry = cache != null ? cache.load(file, etag, mime) : null;
+                    if (entry != null) {
+                        return serveCachedFile(header, entry);
+                    }
+                    res = createResponse(Response.Status.OK, mime, new FileInputStream(file).getChannel(), 0, fileLen);
                     res.addHeader("Content-Length", "" + fileLen);
                     res.addHeader("ETag", etag);
                 }
@@ -452,6 +492,20 @@ public class SimpleWebServer extends NanoHTTPD {
         return res;
     }
 
+    private Response serveCachedFile(Map<String, String> header, StaticFileCache.Entry entry) {
+        Response res;
+        if (entry.getEtag().equals(header.get("if-none-match"))) {
+            res = createResponse(Response.Status.NOT_MODIFIED, entry.getMimeType(), "");
+        } else {
+            byte[] content = entry.getContent();
+            res = new Response(Response.Status.OK, entry.getMimeType(), new ByteArrayInputStream(content), content.length);
+            res.addHeader("Accept-Ranges", "bytes");
+            res.addHeader("Content-Length", "" + content.length);
+            res.addHeader("ETag", entry.getEtag());
+        }
+        return res;
+    }
+
     // Get MIME type from file name extension, if possible
     private String getMimeTypeForFile(String uri) {
         int dot = uri.lastIndexOf('.');
@@ -463,8 +517,8 @@ public class SimpleWebServer extends NanoHTTPD {
     }
 
     // Announce that the file server accepts partial content requests
-    private Response createResponse(Response.Status status, String mimeType, InputStream message) {
-        Response res = new Response(status, mimeType, message);
+    private Response createResponse(Response.Status status, String mimeType, FileChannel channel, long position, long count) {
+        Response res = new Response(status, mimeType, channel, position, count);
         res.addHeader("Accept-Ranges", "bytes");
         return res;
     }
@@ -0,0 +1,249 @@
+package fi.iki.elonen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounded, least-recently-used cache of small static files for {@link SimpleWebServer}.
+ * <p/>
+ * Entries are keyed by the file's normalized path, so different URIs naming the same file share
+ * one entry, and hold its bytes, ETag, MIME type, length and modification time.  A hit is
+ * answered from memory; the file is only looked at again once the entry is older than the
+ * revalidation interval, and dropped if it changed on disk.  The cached bytes are copied into
+ * the response like any other body: what a hit saves is the filesystem access.
+ */
+public class StaticFileCache {
+
+    public static final class Entry {
+        private final File file;
+        private final byte[] content;
+        private final String etag;
+        private final String mimeType;
+        private final long lastModified;
+        private volatile long checkedAt;
+
+        Entry(File file, byte[] content, String etag, String mimeType, long lastModified, long checkedAt) {
+            this.file = file;
+            this.content = content;
+            this.etag = etag;
+            this.mimeType = mimeType;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long revalidateMillis;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes         total number of content bytes kept in memory.
+     * @param maxEntryBytes    files larger than this are never cached.
+     * @param revalidateMillis how long a cached file is served without checking it on disk.
+     */
+    public StaticFileCache(long maxBytes, long maxEntryBytes, long revalidateMillis) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    /**
+     * Returns the cached file, or null on a miss.  Entries whose file changed or disappeared
+     * since they were loaded are dropped.
+     */
+    public Entry get(File file) {
+        Entry entry = lookup(key(file));
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private Entry lookup(String key) {
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+            if (now - entry.checkedAt < revalidateMillis) {
+                return entry;
+            }
+            if (entry.file.lastModified() == entry.lastModified && entry.file.length() == entry.content.length) {
+                entry.checkedAt = now;
+                return entry;
+            }
+            invalidate(key);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the file into the cache if it is small enough.
+     *
+     * @return the new entry, or null if the file is not cacheable.
+     */
+    public Entry load(File file, String etag, String mimeType) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (length > maxEntryBytes) {
+            return null;
+        }
+        byte[] content = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = in.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    // The file shrank while we read it, don't cache a partial copy.
+                    return null;
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        Entry entry = new Entry(file, content, etag, mimeType, lastModified, System.currentTimeMillis());
+        put(key(file), entry);
+        return entry;
+    }
+
+    public void invalidate(File file) {
+        invalidate(key(file));
+    }
+
+    private void invalidate(String key) {
+        lock.lock();
+        try {
+            Entry removed = entries.remove(key);
+            if (removed != null) {
+                currentBytes -= removed.content.length;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            currentBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The absolute path of the file with <code>.</code> and <code>..</code> segments and repeated
+     * separators resolved, without asking the filesystem.
+     */
+    static String key(File file) {
+        String path = file.getAbsolutePath();
+        StringBuilder key = new StringBuilder(path.length());
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf(File.separatorChar, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            String segment = path.substring(start, end);
+            if (segment.equals("..")) {
+                int last = key.lastIndexOf(File.separator);
+                if (last >= 0) {
+                    key.setLength(last);
+                }
+            } else if (start == 0) {
+                key.append(segment);
+            } else if (segment.length() > 0 && !segment.equals(".")) {
+                key.append(File.separatorChar).append(segment);
+            }
+            start = end + 1;
+        }
+        return key.length() > 0 ? key.toString() : File.separator;
+    }
+
+    private void put(String key, Entry entry) {
+        lock.lock();
+        try {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                currentBytes -= previous.content.length;
+            }
+            currentBytes += entry.content.length;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                currentBytes -= eldest.next().content.length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getSize() {
+        lock.lock();
+        try {
+            return currentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -10,6 +10,8 @@ import java.io.OutputStream;
 import java.nio.charset.CharacterCodingException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class WebSocket {
     public static enum State {
@@ -26,6 +28,12 @@ public abstract class WebSocket {
 
     protected State state = State.UNCONNECTED;
 
+    /**
+     * Serializes writers of frames; an explicit lock rather than <code>synchronized</code>
+     * so a virtual thread blocked on a slow client doesn't pin its carrier thread.
+     */
+    private final Lock sendLock = new ReentrantLock();
+
     protected final NanoHTTPD.IHTTPSession handshakeRequest;
 
     protected final NanoHTTPD.Response handshakeResponse = new NanoHTTPD.Response(
@@ -143,8 +151,13 @@ public abstract class WebSocket {
         }
     }
 
-    public synchronized void sendFrame(WebSocketFrame frame) throws IOException {
-        frame.write(out);
+    public void sendFrame(WebSocketFrame frame) throws IOException {
+        sendLock.lock();
+        try {
+            frame.write(out);
+        } finally {
+            sendLock.unlock();
+        }
     }
 
     // --------------------------------Close-----------------------------------
@@ -58,7 +58,7 @@ class DebugWebSocket extends WebSocket {
     }
 
     @Override
-    public synchronized void sendFrame(WebSocketFrame frame) throws IOException {
+    public void sendFrame(WebSocketFrame frame) throws IOException {
         if (debug) {
             System.out.println("S " + frame);
         }